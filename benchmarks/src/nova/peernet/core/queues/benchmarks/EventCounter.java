@@ -0,0 +1,23 @@
+package nova.peernet.core.queues.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reports processed events per second next to the per-invocation score, for
+ * benchmarks whose invocations handle a variable number of events.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class EventCounter {
+
+	public long events;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		events = 0;
+	}
+}
@@ -0,0 +1,55 @@
+package nova.peernet.core.queues.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.core.Event;
+import peernet.core.EventQueue;
+
+/**
+ * Bursty fan-out, as in gossip dissemination: one event triggers fanOut
+ * messages with small latencies, which are then consumed again so that the
+ * resident size stays stable. Each invocation is one burst, i.e. 2 * fanOut
+ * queue operations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+	@Param({ "8", "64" })
+	public int fanOut;
+
+	// Latency of the fanned-out messages is delta / latencyDivisor, so bursts
+	// land close to now while the resident events stay spread out.
+	@Param({ "10" })
+	public long latencyDivisor;
+
+	@Benchmark
+	public long burst(QueueState s, EventCounter c) {
+		EventQueue q = s.queue;
+		Event ev = q.removeFirst();
+		s.now = ev.time;
+		for (int i = 0; i < fanOut; i++)
+			q.add(s.now + 1 + s.delta() / latencyDivisor, null, null, ev.pid, QueueState.PAYLOAD);
+		for (int i = 1; i < fanOut; i++) {
+			ev = q.removeFirst();
+			s.now = ev.time;
+		}
+		c.events += 2 * fanOut;
+		return s.now;
+	}
+}
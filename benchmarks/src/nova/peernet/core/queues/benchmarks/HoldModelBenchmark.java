@@ -0,0 +1,53 @@
+package nova.peernet.core.queues.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Events;
+
+/**
+ * Classic hold model: the resident size stays constant, each operation
+ * removes the earliest event and schedules a new one at now + delta.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class HoldModelBenchmark {
+
+	@Benchmark
+	public long hold(QueueState s) {
+		EventQueue q = s.queue;
+		Event ev = q.removeFirst();
+		s.now = ev.time;
+		q.add(s.now + s.delta(), ev.src, ev.node, ev.pid, ev.event);
+		return s.now;
+	}
+
+	/**
+	 * Same as hold, but drains through removeMany as the engine does, so ties
+	 * on the minimum time are extracted (and rescheduled) together.
+	 */
+	@Benchmark
+	public int holdMany(QueueState s, EventCounter c) {
+		EventQueue q = s.queue;
+		Events evs = q.removeMany();
+		for (int i = 0; i < evs.size; i++) {
+			Event ev = evs.array[i];
+			s.now = ev.time;
+			q.add(s.now + s.delta(), ev.src, ev.node, ev.pid, ev.event);
+		}
+		c.events += evs.size;
+		return evs.size;
+	}
+}
@@ -0,0 +1,64 @@
+package nova.peernet.core.queues.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Events;
+
+/**
+ * Periodic Schedule-like cycles: every resident event is a node cycle that
+ * is rescheduled exactly one period later. Start offsets are drawn from a
+ * small number of phases, so large groups of events share the same time and
+ * are extracted together by removeMany, as in synchronous cycle-driven
+ * protocols.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class PeriodicScheduleBenchmark {
+
+	@State(Scope.Thread)
+	public static class PeriodicState extends QueueState {
+
+		@Param({ "1000" })
+		public long period;
+
+		@Param({ "16" })
+		public int phases;
+
+		@Override
+		protected void fill() {
+			long step = Math.max(1, period / phases);
+			for (long i = 0; i < residentSize; i++)
+				queue.add((i % phases) * step, null, null, (byte) 0, PAYLOAD);
+		}
+	}
+
+	@Benchmark
+	public int cycle(PeriodicState s, EventCounter c) {
+		EventQueue q = s.queue;
+		long period = s.period;
+		Events evs = q.removeMany();
+		for (int i = 0; i < evs.size; i++) {
+			Event ev = evs.array[i];
+			s.now = ev.time;
+			q.add(ev.time + period, ev.src, ev.node, ev.pid, ev.event);
+		}
+		c.events += evs.size;
+		return evs.size;
+	}
+}
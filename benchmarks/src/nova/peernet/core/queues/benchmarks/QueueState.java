@@ -0,0 +1,93 @@
+package nova.peernet.core.queues.benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import peernet.core.EventQueue;
+
+/**
+ * Queue under test, pre-loaded with {@code residentSize} events, shared by all
+ * the workload benchmarks. The queue class is instantiated by reflection, the
+ * same way BigEngineSim does it, so any EventQueue on the classpath can be
+ * measured with {@code -p queueClass=...}.
+ *
+ * Event delays are drawn up-front from an exponential distribution with mean
+ * {@code meanDelta} and replayed from a table, so the measured loop neither
+ * allocates nor pays for random number generation.
+ */
+@State(Scope.Thread)
+public class QueueState {
+
+	public static final Object PAYLOAD = new Object();
+
+	private static final int DELTAS = 1 << 16;
+	private static final int DELTAS_MASK = DELTAS - 1;
+
+	@Param({ "nova.peernet.core.queues.BigHeap",
+		"nova.peernet.core.queues.ConcurrentBigHeap",
+		"nova.peernet.core.queues.ConcurrentBigHeapWithInterval",
+		"nova.peernet.core.queues.CalendarQueue",
+		"nova.peernet.core.queues.LadderQueue",
+		"nova.peernet.core.queues.DaryBigHeap",
+		"nova.peernet.core.queues.RadixHeap",
+		"peernet.core.Heap" })
+	public String queueClass;
+
+	// Use -p residentSize=3000000000 to go past Integer.MAX_VALUE.
+	@Param({ "1000000" })
+	public long residentSize;
+
+	@Param({ "100" })
+	public long meanDelta;
+
+	@Param({ "42" })
+	public long seed;
+
+	public EventQueue queue;
+
+	// Simulated time of the last removed event.
+	public long now;
+
+	private long[] deltas;
+	private int nextDelta;
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		queue = (EventQueue) Class.forName(queueClass).getDeclaredConstructor().newInstance();
+		Random r = new Random(seed);
+		deltas = new long[DELTAS];
+		for (int i = 0; i < DELTAS; i++)
+			deltas[i] = 1 + (long) (-Math.log(1.0 - r.nextDouble()) * meanDelta);
+		now = 0;
+		nextDelta = 0;
+		fill();
+	}
+
+	/**
+	 * Loads the resident events; workloads with a different initial shape
+	 * override this.
+	 */
+	protected void fill() {
+		for (long i = 0; i < residentSize; i++)
+			queue.add(delta(), null, null, (byte) 0, PAYLOAD);
+	}
+
+	@TearDown(Level.Trial)
+	public void unload() {
+		queue = null;
+		deltas = null;
+	}
+
+	/**
+	 * Returns the next delay from the pre-computed table (always >= 1).
+	 */
+	public long delta() {
+		return deltas[nextDelta++ & DELTAS_MASK];
+	}
+}
@@ -4,16 +4,37 @@
  */
 package nova.peernet.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+import nova.peernet.core.queues.BatchEventQueue;
+import nova.peernet.core.queues.ConcurrentBigHeap;
+import nova.peernet.core.queues.ConcurrentBigHeapWithInterval;
+import nova.peernet.core.queues.EventBuffer;
+import nova.peernet.core.queues.EventSerializer;
+import nova.peernet.core.queues.EventSink;
+import nova.peernet.core.queues.JavaEventSerializer;
+import nova.peernet.core.queues.PagePool;
+import nova.peernet.core.queues.RadixHeap;
 import peernet.Simulator;
 import peernet.config.Configuration;
 import peernet.core.CommonState;
@@ -22,6 +43,7 @@ import peernet.core.Event;
 import peernet.core.EventQueue;
 import peernet.core.Events;
 import peernet.core.Heap;
+import peernet.core.Network;
 import peernet.core.Node;
 import peernet.core.Protocol;
 import peernet.core.Schedule;
@@ -31,35 +53,317 @@ import peernet.transport.Address;
 public class BigEngineSim extends Engine
 {
 
+	/**
+	 * If present, the queue keeps the times and pids of the events off-heap
+	 * (see the README); its class needs a constructor taking a single boolean.
+	 */
+	private static final String PAR_HEAP_OFFHEAP = Simulator.PAR_SIM_HEAP + ".offheap";
+
+	/**
+	 * Class of the EventSerializer of the queues that write events to disk
+	 * and of the checkpoints (JavaEventSerializer by default, see the README).
+	 */
+	private static final String PAR_HEAP_SERIALIZER = Simulator.PAR_SIM_HEAP + ".serializer";
+
+	/**
+	 * If present, the events scheduled by the tasks of a batch are buffered
+	 * per task and merged into the queue once it is done (see the README).
+	 */
+	private static final String PAR_HEAP_BUFFERED = Simulator.PAR_SIM_HEAP + ".buffered";
+
+	/**
+	 * Maximum number of events of a batch, when the queue is a
+	 * BatchEventQueue (no limit by default, see the README).
+	 */
+	private static final String PAR_HEAP_BATCH = Simulator.PAR_SIM_HEAP + ".batch";
+
+	/**
+	 * Width of the interval of times of the batches of ConcurrentBigHeapWithInterval
+	 * (DEF_NO_TIME_INTERFERENCE by default, see the README).
+	 */
+	private static final String PAR_HEAP_INTERVAL = Simulator.PAR_SIM_HEAP + ".interval";
+
+	/**
+	 * If present, the width of the interval of ConcurrentBigHeapWithInterval
+	 * is tuned towards PAR_HEAP_TARGET_BATCH events per batch (see the README).
+	 */
+	private static final String PAR_HEAP_ADAPTIVE = Simulator.PAR_SIM_HEAP + ".adaptive";
+
+	/**
+	 * Target number of events of the batches with PAR_HEAP_ADAPTIVE (by
+	 * default, 64 per worker thread).
+	 */
+	private static final String PAR_HEAP_TARGET_BATCH = Simulator.PAR_SIM_HEAP + ".targetbatch";
+
+	/**
+	 * Number of events the queue is expected to hold; if present, its memory
+	 * is allocated when the engine is created (see BatchEventQueue.reserve).
+	 */
+	private static final String PAR_HEAP_CAPACITY = Simulator.PAR_SIM_HEAP + ".capacity";
+
+	/**
+	 * Maximum number of drained pages kept for reuse (PagePool.DEFAULT_CAPACITY
+	 * by default, see the README).
+	 */
+	private static final String PAR_HEAP_PAGE_POOL = Simulator.PAR_SIM_HEAP + ".pagepool";
+
+	/**
+	 * Minimum delay of the events scheduled while a node handles an event;
+	 * if present, batches span time windows of this width (see the README).
+	 */
+	private static final String PAR_HEAP_LOOKAHEAD = Simulator.PAR_SIM_HEAP + ".lookahead";
+
+	/**
+	 * If present, an event scheduled below the lookahead only prints a warning
+	 * and lowers it, instead of stopping the experiment (see the README).
+	 */
+	private static final String PAR_HEAP_LOOKAHEAD_LENIENT = Simulator.PAR_SIM_HEAP + ".lookaheadlenient";
+
+	/**
+	 * If present, the next time window is removed while the current one runs;
+	 * needs PAR_HEAP_BUFFERED or a synchronized queue (see the README).
+	 */
+	private static final String PAR_HEAP_PIPELINED = Simulator.PAR_SIM_HEAP + ".pipelined";
+
+	/**
+	 * Threads that run the node tasks of a batch: "pool" (default), "forkjoin",
+	 * "virtual" or "sequential", the reference run (see the README).
+	 */
+	private static final String PAR_HEAP_SCHEDULER = Simulator.PAR_SIM_HEAP + ".scheduler";
+
+	/**
+	 * Number of carrier threads of the "virtual" scheduler (by default, the
+	 * number of available processors; see the README).
+	 */
+	private static final String PAR_HEAP_CARRIERS = Simulator.PAR_SIM_HEAP + ".carriers";
+
+	/**
+	 * If present, the engine prints a hash of the events executed in every
+	 * period of this many time units to the standard error (see the README).
+	 */
+	private static final String PAR_HEAP_TRACE = Simulator.PAR_SIM_HEAP + ".trace";
+
+	/**
+	 * Number of low bits of the queued times that hold a tie-break key (0 by
+	 * default); ties are ordered only with high probability (see the README).
+	 */
+	private static final String PAR_HEAP_TIEBITS = Simulator.PAR_SIM_HEAP + ".tiebits";
+
+	/**
+	 * File to which the engine saves a checkpoint every
+	 * PAR_HEAP_CHECKPOINT_INTERVAL time units (see the README).
+	 */
+	private static final String PAR_HEAP_CHECKPOINT = Simulator.PAR_SIM_HEAP + ".checkpoint";
+
+	/**
+	 * Simulated time between two checkpoints (see PAR_HEAP_CHECKPOINT).
+	 */
+	private static final String PAR_HEAP_CHECKPOINT_INTERVAL = Simulator.PAR_SIM_HEAP + ".checkpointinterval";
+
+	/**
+	 * Checkpoint file from which the experiment resumes, instead of running
+	 * the events of the initializers (see the README).
+	 */
+	private static final String PAR_HEAP_RESUME = Simulator.PAR_SIM_HEAP + ".resume";
+
+	/**
+	 * If present, an experiment resumes even if some protocols do not
+	 * implement Snapshotable, with a warning.
+	 */
+	private static final String PAR_HEAP_RESUME_PARTIAL = Simulator.PAR_SIM_HEAP + ".resumepartial";
+
+	/**
+	 * If present, the engine keeps the counters of EngineMetrics, exposed
+	 * through JMX and summarized at the end of the experiment (see the README).
+	 */
+	private static final String PAR_HEAP_METRICS = Simulator.PAR_SIM_HEAP + ".metrics";
+
+	/**
+	 * CSV file to which the metrics (see PAR_HEAP_METRICS) of every
+	 * PAR_HEAP_METRICS_PERIOD are appended, one line per period.
+	 */
+	private static final String PAR_HEAP_METRICS_FILE = Simulator.PAR_SIM_HEAP + ".metricsfile";
+
+	/**
+	 * Wall-clock period, in ms, of the lines of PAR_HEAP_METRICS_FILE
+	 * (1000 by default).
+	 */
+	private static final String PAR_HEAP_METRICS_PERIOD = Simulator.PAR_SIM_HEAP + ".metricsperiod";
+
+	/**
+	 * Links of the event chains: the next event of the same node is not
+	 * known yet, or the chain has ended.
+	 */
+	private static final int CHAIN_OPEN = -1;
+	private static final int CHAIN_DONE = -2;
+
+	/**
+	 * Number of possible protocol identifiers (pids are stored as bytes).
+	 */
+	private static final int MAX_PIDS = 256;
+
 	EventQueue eventQueue = null;
-	ExecutorService threadPool = Executors.newCachedThreadPool();
+	BatchEventQueue batchQueue = null;
+	int maxBatch = Integer.MAX_VALUE;
+	EventBuffer initialEvents = null;
+	Executor executor = null;
 	List<Event> pendingControlEvents = new ArrayList<Event>();
-	Map<Node,Future<?>> pendingTasks = new HashMap<Node,Future<?>>(1024); //Fix this constant
+	boolean buffered = false;
+	List<EventBuffer> taskBuffers = new ArrayList<EventBuffer>();
+	int usedTaskBuffers = 0;
+	ThreadLocal<Task> currentTask = ThreadLocal.withInitial(BigEngineSim::newTask);
+	boolean windowed = false;
+	boolean lenientLookahead = false;
+	AtomicLongArray lookaheads = new AtomicLongArray(MAX_PIDS);
+	Events window = new Events(EventBuffer.DEF_CAPACITY);
+	Events spareWindow = new Events(EventBuffer.DEF_CAPACITY);
+	boolean pipelined = false;
+	long batchReach;
+	int tieBits = 0;
+	long tieMask = 0;
+	long engineSeq = 0;
+	long tracePeriod = 0;
+	long traceStart = 0;
+	long traceEnd = Long.MIN_VALUE;
+	long traceCount = 0;
+	long traceSum = 0;
+	long traceHash = 0;
+	Events chainBatch;
+	AtomicIntegerArray chainNext = new AtomicIntegerArray(0);
+	int[] chainSlot = new int[0];
+	NodeTable chainSlots = new NodeTable();
+	int[] slotTail = new int[0];
+	EventBuffer[] slotBuffer = new EventBuffer[0];
+	ChainTask[] slotTask = new ChainTask[0];
+	AtomicInteger runningChains = new AtomicInteger();
+	Thread dispatcher;
+	EventSerializer serializer = null;
+	File checkpointFile = null;
+	long checkpointInterval = 0;
+	long nextCheckpoint = Long.MAX_VALUE;
+	ExecutorService checkpointWriter = null;
+	Future<?> pendingCheckpoint = null;
+	boolean checkpointChecked = false;
+	File resumeFile = null;
+	EngineMetrics metrics = null;
+
+	/**
+	 * The event being executed by a worker thread: its simulation context,
+	 * and where the events it schedules go.
+	 */
+	static final class Task extends SimulationContext
+	{
+		EventBuffer buffer;
+		long parent;
+		long source;
+		int seq;
+	}
+
+	/**
+	 * Creates the task of a new worker thread, which is also the simulation
+	 * context of the thread.
+	 */
+	private static Task newTask()
+	{
+		Task task = new Task();
+		SimulationContext.bind(task);
+		return task;
+	}
 
 	@Override
 	public void startExperiment()
 	{
 		super.startExperiment();
+		if (resumeFile != null)
+			resume();
+		else
+			addInitialEvents();
+		if (metrics != null) {
+			try {
+				metrics.start();
+			} catch (IOException e) {
+				System.err.println("Could not open the metrics file");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 
 		// Perform the actual simulation; executeNext() will tell when to stop.
 		boolean exit = false;
 		Events evs;
+		Events next = null;
 		//long events_processed = 0;
 		while (!exit) {
-			evs = eventQueue.removeMany();
+			if (checkpointFile != null && nextEventTime(next) >= nextCheckpoint)
+				checkpoint(next);
+			JfrBatch jfr = new JfrBatch();
+			jfr.begin();
+			long start = metrics != null ? System.nanoTime() : 0;
+			evs = next != null ? next : removeBatch();
+			next = null;
+			if (metrics != null) {
+				long now = System.nanoTime();
+				metrics.removed(now - start);
+				metrics.batch(evs.size);
+				start = now;
+			}
 			if(evs.size > 1) {
 				//System.out.print(evs.size);
 				exit = executeNextEvents(evs);
+				int nodes = chainSlots.size();
+				if (!exit && pipelined && windowed && pendingControlEvents.isEmpty()) {
+					long removing = metrics != null ? System.nanoTime() : 0;
+					next = removeWindow(Long.MAX_VALUE);
+					if (next.size == 0)
+						next = null;
+					if (metrics != null) {
+						long now = System.nanoTime();
+						metrics.removed(now - removing);
+						start += now - removing;
+					}
+				}
+				if (metrics != null) {
+					long now = System.nanoTime();
+					metrics.dispatched(now - start);
+					start = now;
+				}
 				waitForTermination();
+				if (metrics != null) {
+					long now = System.nanoTime();
+					metrics.waited(now - start);
+					start = now;
+				}
+				if (next != null) {
+					next = completeWindow(next);
+					if (metrics != null) {
+						long now = System.nanoTime();
+						metrics.removed(now - start);
+						start = now;
+					}
+				}
 				exit = exit || executePendingControlEvents();	
+				if (metrics != null)
+					metrics.dispatched(System.nanoTime() - start);
+				jfr.finish(evs.size, nodes, evs.array[0].time >> tieBits, evs.array[evs.size - 1].time >> tieBits);
 			} else if(evs.size == 1){
 				//System.out.print(1);
 				exit = executeNextEvent(evs.array[0]);
+				if (metrics != null) {
+					long elapsed = System.nanoTime() - start;
+					metrics.dispatched(elapsed);
+					metrics.ran(elapsed);
+				}
+				long time = evs.array[0].time >> tieBits;
+				jfr.finish(1, evs.array[0].node == null ? 0 : 1, time, time);
 			} else {
 				//System.out.print(0);
 				System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
 				exit = true;
 			}
+			if (exit && tracePeriod > 0)
+				printTrace();
+			if (metrics != null)
+				metrics.batchDone(CommonState.getTime(), eventQueue.size());
 			/**events_processed += evs.size;
 			if(events_processed >= 100) {
 				System.out.println(" [" + events_processed + "] Time: " + CommonState.getTime());
@@ -67,6 +371,10 @@ public class BigEngineSim extends Engine
 			}**/
 
 		}
+		if (checkpointFile != null)
+			awaitCheckpoint();
+		if (metrics != null)
+			metrics.stop();
 
 		// analysis after the simulation
 		//CommonState.setPhase(CommonState.POST_SIMULATION);
@@ -77,6 +385,400 @@ public class BigEngineSim extends Engine
 		}
 	}
 
+	/**
+	 * Inserts into the queue, in bulk, the events scheduled before the
+	 * simulation loop (by the initializers and the first control schedules).
+	 */
+	private void addInitialEvents() {
+		if (initialEvents == null)
+			return;
+		EventBuffer events = initialEvents;
+		initialEvents = null;
+		addEventsAt(events);
+	}
+
+	/**
+	 * Returns the time of the next event to execute: the first of the
+	 * window already removed from the queue, if any, or the first in the
+	 * queue (Long.MIN_VALUE if there are none).
+	 */
+	private long nextEventTime(Events next) {
+		if (next != null)
+			return next.array[0].time >> tieBits;
+		if (eventQueue.size() == 0)
+			return Long.MIN_VALUE;
+		return eventQueue.getNextTime() >> tieBits;
+	}
+
+	/**
+	 * Takes a checkpoint (see PAR_HEAP_CHECKPOINT): streams it to a
+	 * temporary file, and hands the file to the background writer. The
+	 * events of the window already removed from the queue, if any, are
+	 * saved with those of the queue.
+	 */
+	private void checkpoint(Events next)
+	{
+		nextCheckpoint = (Math.floorDiv(nextEventTime(next), checkpointInterval) + 1) * checkpointInterval;
+		awaitCheckpoint();
+
+		Checkpoint cp = new Checkpoint();
+		cp.time = CommonState.getTime();
+		cp.nextlog = nextlog;
+		cp.engineSeq = engineSeq;
+		cp.tieBits = tieBits;
+		cp.windowed = windowed;
+		cp.lookaheads = new long[MAX_PIDS];
+		for (int i = 0; i < MAX_PIDS; i++)
+			cp.lookaheads[i] = lookaheads.get(i);
+		cp.traceStart = traceStart;
+		cp.traceEnd = traceEnd;
+		cp.traceCount = traceCount;
+		cp.traceSum = traceSum;
+		cp.traceHash = traceHash;
+		for (int i = 0; i < Network.size(); i++) {
+			Node node = Network.get(i);
+			for (int pid = 0; pid < node.protocolSize(); pid++) {
+				Protocol prot = node.getProtocol(pid);
+				if (prot instanceof Snapshotable)
+					cp.states.add(new Checkpoint.State(node.getID(), pid, ((Snapshotable) prot).snapshot()));
+			}
+		}
+		cp.random = CommonState.r;
+		if (!checkpointChecked) {
+			Set<String> missing = notSnapshotable();
+			if (!missing.isEmpty())
+				System.err.println("Engine: WARNING: the state of protocols " + missing
+						+ " is not saved in checkpoints, as they do not implement Snapshotable");
+			checkpointChecked = true;
+		}
+		try {
+			cp.create(checkpointFile, serializer, eventQueue.size() + (next == null ? 0 : next.size));
+			if (next != null)
+				for (int i = 0; i < next.size; i++) {
+					Event ev = next.array[i];
+					cp.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+				}
+			copyQueue(cp);
+			cp.finish();
+		} catch (IOException | RuntimeException e) {
+			cp.abort();
+			System.err.println("Engine: could not save the checkpoint at time " + cp.time + " to " + checkpointFile);
+			e.printStackTrace();
+			return;
+		}
+		pendingCheckpoint = checkpointWriter.submit(() -> {
+			try {
+				cp.commit();
+				System.err.println("Engine: checkpoint at time " + cp.time + " (" + cp.eventCount + " events, "
+						+ cp.stateCount + " protocol states) saved to " + checkpointFile);
+			} catch (IOException | RuntimeException e) {
+				cp.abort();
+				System.err.println("Engine: could not save the checkpoint at time " + cp.time + " to " + checkpointFile);
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Waits until the checkpoint being written, if any, is saved.
+	 */
+	private void awaitCheckpoint()
+	{
+		if (pendingCheckpoint == null)
+			return;
+		try {
+			pendingCheckpoint.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+		pendingCheckpoint = null;
+	}
+
+	/**
+	 * Hands all the events of the queue to the sink, leaving the queue
+	 * unchanged. Queues that are not BatchEventQueues are emptied into a
+	 * buffer and filled again.
+	 */
+	private void copyQueue(EventSink events) throws IOException
+	{
+		if (batchQueue != null) {
+			batchQueue.copyTo(events);
+			return;
+		}
+		EventBuffer all = new EventBuffer();
+		while (eventQueue.size() > 0) {
+			Event ev = eventQueue.removeFirst();
+			all.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+		}
+		try {
+			Event ev = new Event();
+			for (int i = 0; i < all.size(); i++) {
+				all.get(i, ev);
+				events.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+			}
+		} finally {
+			all.drainTo(eventQueue);
+		}
+	}
+
+	/**
+	 * Replaces the events scheduled by the initializers with those of the
+	 * checkpoint to resume from, and restores the state it saved (see
+	 * PAR_HEAP_RESUME).
+	 */
+	private void resume()
+	{
+		Map<Long, Schedule> schedules = new HashMap<Long, Schedule>();
+		Event ev = new Event();
+		if (initialEvents != null) {
+			for (int i = 0; i < initialEvents.size(); i++) {
+				initialEvents.get(i, ev);
+				if (ev.event instanceof Schedule)
+					schedules.put(Checkpoint.scheduleKey(ev.pid, ((Schedule) ev.event).schedId), (Schedule) ev.event);
+			}
+			initialEvents = null;
+		}
+		while (eventQueue.size() > 0) {
+			ev = eventQueue.removeFirst();
+			if (ev.event instanceof Schedule)
+				schedules.put(Checkpoint.scheduleKey(ev.pid, ((Schedule) ev.event).schedId), (Schedule) ev.event);
+		}
+		Map<Long, Node> nodes = new HashMap<Long, Node>();
+		for (int i = 0; i < Network.size(); i++)
+			nodes.put(Network.get(i).getID(), Network.get(i));
+		Set<String> missing = notSnapshotable();
+		if (!missing.isEmpty()) {
+			if (!Configuration.contains(PAR_HEAP_RESUME_PARTIAL))
+				throw new IllegalStateException("Cannot resume from " + resumeFile + ": the state of protocols " + missing
+						+ " is not in the checkpoint, as they do not implement Snapshotable (see "
+						+ PAR_HEAP_RESUME_PARTIAL + ")");
+			System.err.println("Engine: WARNING: resuming from " + resumeFile + " with the state given by the initializers to protocols "
+					+ missing + ", which do not implement Snapshotable");
+		}
+
+		// The events are inserted in bulk, a buffer at a time.
+		Checkpoint cp = null;
+		EventBuffer events = new EventBuffer();
+		try {
+			cp = Checkpoint.open(resumeFile, serializer);
+			try {
+				if (cp.tieBits != tieBits)
+					throw new IllegalArgumentException("Checkpoint " + resumeFile + " uses " + cp.tieBits
+							+ " tie-break bits, not " + tieBits);
+				cp.readEvents(nodes, schedules, (time, src, node, pid, event) -> {
+					events.add(time, src, node, pid, event);
+					if (events.isFull())
+						addEventsAt(events);
+				});
+				cp.readStates();
+			} finally {
+				cp.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not resume from checkpoint: " + resumeFile);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		addEventsAt(events);
+
+		CommonState.setTime(cp.time);
+		restoreRandom(cp.random);
+		nextlog = cp.nextlog;
+		engineSeq = cp.engineSeq;
+		if (cp.windowed) {
+			for (int i = 0; i < MAX_PIDS && i < cp.lookaheads.length; i++)
+				lookaheads.set(i, cp.lookaheads[i]);
+			windowed = true;
+		}
+		traceStart = cp.traceStart;
+		traceEnd = cp.traceEnd;
+		traceCount = cp.traceCount;
+		traceSum = cp.traceSum;
+		traceHash = cp.traceHash;
+		for (Checkpoint.State state : cp.states) {
+			Node node = nodes.get(state.node);
+			if (node == null)
+				throw new IllegalArgumentException("Checkpoint " + resumeFile + " has a state for unknown node " + state.node);
+			((Snapshotable) node.getProtocol(state.pid)).restore(state.snapshot);
+		}
+		if (checkpointFile != null)
+			nextCheckpoint = (Math.floorDiv(cp.time, checkpointInterval) + 1) * checkpointInterval;
+		System.err.println("Engine: resumed from " + resumeFile + " at time " + cp.time + " with " + cp.eventCount + " events and "
+				+ cp.states.size() + " protocol states");
+	}
+
+	/**
+	 * Returns the pids and classes of the protocols of the network that do
+	 * not implement Snapshotable, whose state is not in checkpoints.
+	 */
+	private Set<String> notSnapshotable()
+	{
+		Set<String> missing = new TreeSet<String>();
+		for (int i = 0; i < Network.size(); i++) {
+			Node node = Network.get(i);
+			for (int pid = 0; pid < node.protocolSize(); pid++) {
+				Protocol prot = node.getProtocol(pid);
+				if (!(prot instanceof Snapshotable))
+					missing.add(pid + ":" + prot.getClass().getName());
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Replaces CommonState.r with the generator saved in a checkpoint. The
+	 * field is set by reflection, so that any subclass of Random saved
+	 * from it can be put back whatever the declared type of the field.
+	 */
+	private void restoreRandom(Object random)
+	{
+		try {
+			CommonState.class.getField("r").set(null, random);
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			throw new IllegalStateException("Cannot restore CommonState.r from " + resumeFile + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Removes the next batch of events from the queue.
+	 */
+	private Events removeBatch() {
+		if (windowed || (tieBits > 0 && batchQueue == null))
+			return removeWindow(Long.MAX_VALUE);
+		if (tieBits > 0)
+			return batchQueue.removeUpTo(eventQueue.getNextTime() | tieMask, maxBatch);
+		if (batchQueue != null)
+			return batchQueue.removeMany(maxBatch);
+		return eventQueue.removeMany();
+	}
+
+	/**
+	 * Removes the events of the next time window from the queue. The window
+	 * starts at the next event and ends before the earliest time at which an
+	 * event of the window can schedule a new one; it also ends at the first
+	 * control event, as controls run after the other events of the batch,
+	 * and at time limit.
+	 * The window alternates between two arrays, so the window returned by
+	 * the previous call stays valid while this one is removed.
+	 */
+	private Events removeWindow(long limit) {
+		Events spare = spareWindow;
+		spareWindow = window;
+		window = spare;
+		long end = limit;
+		int n = 0;
+		while (n < maxBatch && eventQueue.size() > 0 && (eventQueue.getNextTime() >> tieBits) <= end)
+			end = Math.min(end, addToWindow(n++, eventQueue.removeFirst()));
+		window.size = n;
+		return window;
+	}
+
+	/**
+	 * Completes the window removed from the queue while the previous batch
+	 * ran (see PAR_HEAP_PIPELINED) with the events scheduled by that batch,
+	 * which are now in the queue: takes the events of both in time order,
+	 * cuts them as removeWindow does, and puts the events of the removed
+	 * window beyond the cut back into the queue.
+	 */
+	private Events completeWindow(Events removed) {
+		// Unbuffered tasks may have inserted events below those removed.
+		if (!buffered)
+			Arrays.sort(removed.array, 0, removed.size, Comparator.comparingLong(e -> e.time));
+		Events spare = spareWindow;
+		spareWindow = window;
+		window = spare;
+		long end = Long.MAX_VALUE;
+		int n = 0;
+		int i = 0;
+		while (n < maxBatch) {
+			boolean queued = eventQueue.size() > 0
+					&& (i == removed.size || eventQueue.getNextTime() < removed.array[i].time);
+			if (!queued && i == removed.size)
+				break;
+			long time = queued ? eventQueue.getNextTime() : removed.array[i].time;
+			if ((time >> tieBits) > end)
+				break;
+			end = Math.min(end, addToWindow(n++, queued ? eventQueue.removeFirst() : removed.array[i++]));
+		}
+		window.size = n;
+		for (; i < removed.size; i++) {
+			Event ev = removed.array[i];
+			eventQueue.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+		}
+		return window;
+	}
+
+	/**
+	 * Copies an event to position n of the window, growing it if needed,
+	 * and returns the last time of a window with that event, before the
+	 * earliest time at which it can schedule a new one.
+	 */
+	private long addToWindow(int n, Event ev) {
+		if (n == window.array.length)
+			growWindow(n);
+		Event w = window.array[n];
+		w.time = ev.time;
+		w.src = ev.src;
+		w.node = ev.node;
+		w.pid = ev.pid;
+		w.event = ev.event;
+		long time = ev.time >> tieBits;
+		long reach = ev.node == null ? time : time + Math.max(lookaheads.get(ev.pid) - 1, 0);
+		return reach < time ? Long.MAX_VALUE : reach;
+	}
+
+	/**
+	 * Replaces the window by a larger one holding its first n events.
+	 */
+	private void growWindow(int n) {
+		Events larger = new Events((int) Math.min(2L * n, Integer.MAX_VALUE - 8));
+		System.arraycopy(window.array, 0, larger.array, 0, n);
+		window = larger;
+	}
+
+	/**
+	 * Declares the minimum delay of the events scheduled while protocol pid
+	 * handles an event (e.g. the minimum latency of its transport), and
+	 * makes the engine execute batches over time windows (see
+	 * PAR_HEAP_LOOKAHEAD). A smaller delay observed during the experiment
+	 * stops it, or lowers the lookahead of the protocol with
+	 * PAR_HEAP_LOOKAHEAD_LENIENT.
+	 */
+	public void setLookahead(int pid, long minDelay)
+	{
+		if (minDelay < 0)
+			throw new IllegalArgumentException("Negative lookahead for pid " + pid + ": " + minDelay);
+		lookaheads.set(pid, minDelay);
+		windowed = true;
+	}
+
+	/**
+	 * Returns the current lookahead of protocol pid.
+	 */
+	public long getLookahead(int pid)
+	{
+		return lookaheads.get(pid);
+	}
+
+	/**
+	 * Handles an event scheduled by protocol pid with a delay below its
+	 * lookahead: fails, or, with PAR_HEAP_LOOKAHEAD_LENIENT, lowers the
+	 * lookahead to the delay, so that later windows are computed with it.
+	 */
+	private void observeDelay(int pid, long delay)
+	{
+		if (!lenientLookahead)
+			throw new IllegalStateException("pid " + pid + " scheduled an event with delay " + delay
+					+ ", below its lookahead " + lookaheads.get(pid) + ": the current window is no longer free of causal"
+					+ " dependencies (see " + PAR_HEAP_LOOKAHEAD_LENIENT + ")");
+		long prev = lookaheads.getAndAccumulate(pid, delay, Math::min);
+		if (delay < prev)
+			System.err.println("Engine: pid " + pid + " scheduled an event with delay " + delay
+					+ ", below its lookahead " + prev + "; lowering the lookahead");
+	}
+
 	private boolean executePendingControlEvents() {
 		boolean ret = false; //Return value (false means continue)
 
@@ -85,7 +787,7 @@ public class BigEngineSim extends Engine
 			for(Event ev: this.pendingControlEvents) {
 				int pid = ev.pid;
 				ret = ret || controls[pid].execute();
-				long delay = controlSchedules[pid].nextDelay(ev.time);
+				long delay = controlSchedules[pid].nextDelay(ev.time >> tieBits);
 				if (delay>=0)
 					addEventIn(delay,  null, null, pid, null);
 			}
@@ -97,26 +799,172 @@ public class BigEngineSim extends Engine
 	}
 
 	private void waitForTermination() {
-		for(Future<?> f: pendingTasks.values()) {
-			while(true) {
-				try {		
-					f.get();
-					break;	
-				} catch (InterruptedException e) {
-					;
-				} catch (ExecutionException e) {
-					System.err.println("Execution of simulated task failed.");
-					e.printStackTrace();
-					System.exit(1);
+		waitForChains();
+		mergeTaskBuffers();
+	}
+
+	/**
+	 * Returns an empty buffer for the next task of the batch,
+	 * or null if the events are inserted directly into the queue.
+	 */
+	private EventBuffer nextTaskBuffer() {
+		if (!buffered)
+			return null;
+		if (usedTaskBuffers == taskBuffers.size())
+			taskBuffers.add(new EventBuffer());
+		return taskBuffers.get(usedTaskBuffers++);
+	}
+
+	/**
+	 * Moves the events of the buffers of the batch into the queue,
+	 * in task submission order.
+	 */
+	private void mergeTaskBuffers() {
+		for (int i = 0; i < usedTaskBuffers; i++)
+			taskBuffers.get(i).drainTo(eventQueue);
+		usedTaskBuffers = 0;
+	}
+
+	/**
+	 * Runs a node event with the context of a task, in a worker thread or
+	 * in the engine thread.
+	 */
+	private void runTask(Event e, EventBuffer buffer) {
+		Task task = currentTask.get();
+		task.buffer = buffer;
+		task.parent = e.time;
+		task.source = e.node.getID();
+		task.seq = 0;
+		task.enter(e.time >> tieBits, e.node, e.pid);
+		JfrNodeTask jfr = new JfrNodeTask();
+		jfr.begin();
+		try {
+			processNodeEvent(e, e.pid, task.time);
+		} finally {
+			task.exit();
+			task.buffer = null;
+		}
+		jfr.finish(task.source, e.pid, e.time >> tieBits);
+	}
+
+	/**
+	 * Prepares the chain links for a batch of events.
+	 */
+	private void prepareChains(Events evs) {
+		chainBatch = evs;
+		if (chainNext.length() < evs.size) {
+			int cap = Math.max(evs.size, 2 * chainNext.length());
+			chainNext = new AtomicIntegerArray(cap);
+			chainSlot = new int[cap];
+		}
+		for (int i = 0; i < evs.size; i++)
+			chainNext.lazySet(i, CHAIN_OPEN);
+		dispatcher = Thread.currentThread();
+	}
+
+	/**
+	 * Appends event i of the batch to the chain of its node, starting a new
+	 * chain task if the node has none running. The slots of the nodes are
+	 * numbered in order of first appearance in the batch, which is also the
+	 * order in which their insertion buffers are merged. The slots, their
+	 * tails and their tasks are reused from batch to batch.
+	 */
+	private void dispatchChained(int i) {
+		long id = chainBatch.array[i].node.getID();
+		int s = chainSlots.get(id);
+		if (s < 0) {
+			s = chainSlots.size();
+			if (s == slotTail.length) {
+				int cap = Math.max(16, 2 * s);
+				slotTail = Arrays.copyOf(slotTail, cap);
+				slotBuffer = Arrays.copyOf(slotBuffer, cap);
+				slotTask = Arrays.copyOf(slotTask, cap);
+			}
+			if (slotTask[s] == null)
+				slotTask[s] = new ChainTask();
+			chainSlots.put(id, s);
+			slotBuffer[s] = nextTaskBuffer();
+			slotTail[s] = i;
+			chainSlot[i] = s;
+			startChain(s, i);
+			return;
+		}
+		chainSlot[i] = s;
+		int tail = slotTail[s];
+		slotTail[s] = i;
+		// If the chain already ended, the event starts a new one.
+		if (!chainNext.compareAndSet(tail, CHAIN_OPEN, i))
+			startChain(s, i);
+	}
+
+	/**
+	 * Starts the task of slot s from event first of the batch. The task
+	 * is not running: either it was never started in this batch, or its
+	 * chain has ended, and then it only reads first before the CAS that
+	 * ended the chain.
+	 */
+	private void startChain(int s, int first) {
+		ChainTask task = slotTask[s];
+		task.first = first;
+		runningChains.incrementAndGet();
+		executor.execute(task);
+	}
+
+	/**
+	 * Waits until all the chains of the batch have ended.
+	 */
+	private void waitForChains() {
+		JfrBarrierWait jfr = new JfrBarrierWait();
+		jfr.begin();
+		int chains = runningChains.get();
+		while (runningChains.get() > 0)
+			LockSupport.park(this);
+		jfr.finish(chains);
+		Arrays.fill(slotBuffer, 0, chainSlots.size(), null);
+		chainSlots.clear();
+		chainBatch = null;
+	}
+
+	/**
+	 * Runs the events of a node chain, from event first of the batch, until
+	 * the chain ends.
+	 */
+	final class ChainTask implements Runnable
+	{
+		int first;
+
+		@Override
+		public void run()
+		{
+			long start = metrics != null ? System.nanoTime() : 0;
+			try {
+				int i = first;
+				while (true) {
+					Event e = chainBatch.array[i];
+					runTask(e, slotBuffer[chainSlot[i]]);
+					int next = chainNext.get(i);
+					if (next == CHAIN_OPEN && chainNext.compareAndSet(i, CHAIN_OPEN, CHAIN_DONE))
+						break;
+					i = chainNext.get(i);
 				}
+			} catch (Throwable e) {
+				System.err.println("Execution of simulated task failed.");
+				e.printStackTrace();
+				System.exit(1);
 			}
+			if (metrics != null)
+				metrics.ran(System.nanoTime() - start);
+			if (runningChains.decrementAndGet() == 0)
+				LockSupport.unpark(dispatcher);
 		}
-		pendingTasks.clear();
 	}
 
+	/**
+	 * Handles a node event. The time, node and pid of the event are not set
+	 * in CommonState, which is shared by the tasks of a batch: protocols
+	 * read them from SimulationContext.
+	 */
 	private void processNodeEvent(Event ev, int pid, long time) {
-		//      CommonState.setPid(pid);  //NOTE: try to entirely avoid CommonState
-		//      CommonState.setNode(ev.node);
 		if (ev.event instanceof Schedule)
 		{
 			Protocol prot = ev.node.getProtocol(pid);
@@ -142,7 +990,7 @@ public class BigEngineSim extends Engine
 	 */
 	private boolean executeNextEvent(Event ev) {
 
-		long time = ev.time; // >> rbits;
+		long time = ev.time >> tieBits;
 		//System.err.println(ev.time + " " + ev.pid + " " + ev.node + " " + ev.src + " " + ev.event);
 		//System.err.println("Removing event at time: " + time);
 		if (time >= nextlog) {
@@ -157,6 +1005,8 @@ public class BigEngineSim extends Engine
 			return true;
 		}
 		CommonState.setTime(time);
+		if (tracePeriod > 0 && (ev.node == null || ev.node.isUp()))
+			traceEvent(ev, time);
 		int pid = ev.pid;
 		if (ev.node == null)  //XXX: Not an elegant way to identify control events
 		{
@@ -166,23 +1016,8 @@ public class BigEngineSim extends Engine
 				addEventIn(delay, null, null, pid, null);
 			return ret;
 		} else if (ev.node.isUp()) {
-			//      CommonState.setPid(pid);  // XXX try to entirely avoid CommonState
-			//      CommonState.setNode(ev.node);
-			if (ev.event instanceof Schedule) {
-				Protocol prot = ev.node.getProtocol(pid);
-				prot.nextCycle(((Schedule) ev.event).schedId);
-
-				long delay = prot.nextDelay();
-				if (delay == 0)
-					delay = ((Schedule) ev.event).nextDelay(time);
-
-				if (delay > 0)
-					addEventIn(delay, null, ev.node, pid, ev.event);
-			} else // call Protocol.processEvent()
-			{
-				Protocol prot = ev.node.getProtocol(pid);
-				prot.processEvent(ev.src, ev.event);
-			}
+			// As a task, so the events it schedules get the same keys.
+			runTask(ev, null);
 		}
 		return false;
 	}
@@ -196,9 +1031,12 @@ public class BigEngineSim extends Engine
 	{
 		Event ev = null;
 
+		prepareChains(evs);
+		batchReach = Long.MAX_VALUE;
+
 		for(int i = 0; i < evs.size; i++) {
 			ev = evs.array[i];
-			long time = ev.time;//>>rbits;
+			long time = ev.time >> tieBits;
 			//System.err.println("Removing event at time: " + time);
 
 			if (time>=nextlog)
@@ -217,6 +1055,8 @@ public class BigEngineSim extends Engine
 			}
 
 			CommonState.setTime(time);
+			if (tracePeriod > 0 && (ev.node == null || ev.node.isUp()))
+				traceEvent(ev, time);
 
 			//System.err.println("Sequencing over events: " + i + "/" + evs.size);
 			if (ev.node == null)  //TODO: Fix this not an elegant way to identify control events
@@ -226,34 +1066,10 @@ public class BigEngineSim extends Engine
 			}
 			else if (ev.node.isUp())
 			{
-				//System.err.println("Check future existence for target node");
-				int pid = ev.pid;
-				Future<?> f = pendingTasks.get(ev.node);
-				if(f != null) {
-					while(true) { 
-						try {
-							f.get();
-							break;
-						} catch (InterruptedException e) {
-							;
-						} catch (ExecutionException e) {
-							System.err.println("Execution of simulated task failed.");
-							e.printStackTrace();
-							System.exit(1);
-						}		
-					}
-				}
-				//System.err.println("Scheduling new task");
-				final Event e = ev;
-				pendingTasks.put(ev.node, threadPool.submit(new Runnable() {
-
-					@Override
-					public void run() {
-						processNodeEvent(e, pid, time);
-					}
-
-				}));
-
+				long reach = time + lookaheads.get(ev.pid);
+				if (reach >= time)
+					batchReach = Math.min(batchReach, reach);
+				dispatchChained(i);
 			}
 		}
 		//System.err.println("Teminating sequence");
@@ -262,19 +1078,225 @@ public class BigEngineSim extends Engine
 
 	public void addEventAt(long time, Address src, Node node, int pid, Object event)
 	{
-		//time = (time<<rbits) | CommonState.r.nextInt(1<<rbits);
 		//System.err.println("Adding event at time: " + time);
-		eventQueue.add(time, src, node, (byte) pid, event);
+		Task task = currentTask.get();
+		if (task.active && windowed && time - task.time < lookaheads.get(task.pid))
+			observeDelay(task.pid, time - task.time);
+		if (tieBits > 0)
+			time = queueTime(time, task);
+		if (initialEvents != null) {
+			initialEvents.add(time, src, node, (byte) pid, event);
+			return;
+		}
+		if (!task.active) {
+			eventQueue.add(time, src, node, (byte) pid, event);
+			return;
+		}
+		if (task.buffer != null)
+			task.buffer.add(time, src, node, (byte) pid, event);
+		else
+			eventQueue.add(time, src, node, (byte) pid, event);
+	}
+
+	/**
+	 * Returns the time at which an event at the specified time, scheduled
+	 * in the context of the task, is kept in the queue (see
+	 * PAR_HEAP_TIEBITS).
+	 */
+	private long queueTime(long time, Task task) {
+		if (time > (Long.MAX_VALUE >> tieBits))
+			throw new IllegalArgumentException("Time " + time + " cannot be queued with " + tieBits
+					+ " tie-break bits (see " + PAR_HEAP_TIEBITS + "): times must be below 2^" + (63 - tieBits));
+		long h;
+		if (task.active)
+			h = mix(mix(task.parent) + task.source) + task.seq++;
+		else
+			h = mix(engineSeq++);
+		return (time << tieBits) | (mix(h) & tieMask);
+	}
+
+	/**
+	 * Adds an event being executed, at the specified time, to the trace,
+	 * first printing the checkpoint of the previous period if the event
+	 * starts a new one.
+	 */
+	private void traceEvent(Event ev, long time) {
+		if (time >= traceEnd) {
+			printTrace();
+			traceStart = Math.floorDiv(time, tracePeriod) * tracePeriod;
+			traceEnd = traceStart + tracePeriod;
+		}
+		long h = mix(time);
+		h = mix(h + (ev.node == null ? -1 : ev.node.getID()));
+		h = mix(h + ev.pid);
+		traceSum += mix(h + digest(ev.event));
+		traceCount++;
+	}
+
+	/**
+	 * Prints the checkpoint of the current period, if it has events.
+	 */
+	private void printTrace() {
+		if (traceCount == 0)
+			return;
+		traceHash = mix(traceHash + mix(traceSum + traceCount));
+		System.err.println("Trace: [" + traceStart + ", " + traceEnd + ") events " + traceCount
+				+ " hash " + String.format("%016x", traceHash));
+		traceCount = 0;
+		traceSum = 0;
+	}
+
+	/**
+	 * Returns a hash of an event payload that is the same in every run: its
+	 * hashCode if its class overrides the identity hash, its name if it is
+	 * an enum constant, and the name of its class otherwise.
+	 */
+	private static long digest(Object payload) {
+		if (payload == null)
+			return 0;
+		if (VALUE_HASH.get(payload.getClass()))
+			return payload.hashCode();
+		if (payload instanceof Enum)
+			return ((Enum<?>) payload).name().hashCode();
+		return payload.getClass().getName().hashCode();
+	}
+
+	/**
+	 * Whether a class overrides Object.hashCode.
+	 */
+	private static final ClassValue<Boolean> VALUE_HASH = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				Class<?> owner = type.getMethod("hashCode").getDeclaringClass();
+				return owner != Object.class && owner != Enum.class;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+	};
+
+	/**
+	 * A 64-bit hash function (the finalizer of SplitMix64).
+	 */
+	private static long mix(long h) {
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+
+	/**
+	 * Schedules an event after the specified delay, counted from the time
+	 * of SimulationContext: within a task, the time of the event being
+	 * executed, which may be earlier than CommonState's time when batches
+	 * span a time window.
+	 */
+	@Override
+	public void addEventIn(long delay, Address src, Node node, int pid, Object event)
+	{
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay for pid " + pid + ": " + delay);
+		addEventAt(SimulationContext.getTime() + delay, src, node, pid, event);
+	}
+
+	/**
+	 * Inserts all the events of the buffer into the event queue at once,
+	 * which is much faster than adding them one by one when the queue can
+	 * build its order in bulk (see BatchEventQueue.addAll), and empties the
+	 * buffer. Initializers that schedule many events may use it directly;
+	 * events scheduled through addEventAt before the simulation loop starts
+	 * are already inserted this way.
+	 */
+	public void addEventsAt(EventBuffer events)
+	{
+		if (batchQueue != null)
+			batchQueue.addAll(events);
+		else
+			events.drainTo(eventQueue);
 	}
 
 	@Override
 	protected void createHeaps()
 	{
+		buffered = Configuration.contains(PAR_HEAP_BUFFERED);
+		tieBits = Configuration.getInt(PAR_HEAP_TIEBITS, 0);
+		if (tieBits < 0 || tieBits > 62)
+			throw new IllegalArgumentException("Invalid number of tie-break bits: " + tieBits);
+		tieMask = (1L << tieBits) - 1;
+		tracePeriod = Configuration.getLong(PAR_HEAP_TRACE, 0);
+		if (tracePeriod < 0)
+			throw new IllegalArgumentException("Invalid trace period: " + tracePeriod);
+		pipelined = Configuration.contains(PAR_HEAP_PIPELINED);
+		lenientLookahead = Configuration.contains(PAR_HEAP_LOOKAHEAD_LENIENT);
+		if (Configuration.contains(PAR_HEAP_CHECKPOINT)) {
+			checkpointFile = new File(Configuration.getString(PAR_HEAP_CHECKPOINT));
+			checkpointInterval = Configuration.getLong(PAR_HEAP_CHECKPOINT_INTERVAL);
+			if (checkpointInterval <= 0)
+				throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+			nextCheckpoint = checkpointInterval;
+			checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "checkpoint-writer");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		if (Configuration.contains(PAR_HEAP_RESUME))
+			resumeFile = new File(Configuration.getString(PAR_HEAP_RESUME));
+		String scheduler = Configuration.getString(PAR_HEAP_SCHEDULER, "pool");
+		int threads = Runtime.getRuntime().availableProcessors();
+		int workers = threads;
+		if (scheduler.equals("forkjoin"))
+			executor = new ForkJoinPool(threads);
+		else if (scheduler.equals("virtual")) {
+			if (Configuration.contains(PAR_HEAP_CARRIERS) && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+				String carriers = Integer.toString(Configuration.getInt(PAR_HEAP_CARRIERS));
+				System.setProperty("jdk.virtualThreadScheduler.parallelism", carriers);
+				System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", carriers);
+			}
+			workers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", threads);
+			executor = Executors.newVirtualThreadPerTaskExecutor();
+		} else if (scheduler.equals("sequential")) {
+			workers = 1;
+			executor = Runnable::run;
+		} else if (scheduler.equals("pool"))
+			executor = Executors.newFixedThreadPool(threads, r -> {
+				// Like the ForkJoinPool workers, so idle workers never keep the JVM alive.
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			});
+		else
+			throw new IllegalArgumentException("Unknown scheduler: " + scheduler);
+		if (Configuration.contains(PAR_HEAP_METRICS)) {
+			String file = Configuration.getString(PAR_HEAP_METRICS_FILE, null);
+			metrics = new EngineMetrics(workers, file == null ? null : new File(file),
+					Configuration.getLong(PAR_HEAP_METRICS_PERIOD, 1000));
+		}
 
+		try {
+			if (Configuration.contains(PAR_HEAP_SERIALIZER))
+				serializer = (EventSerializer) Class.forName(Configuration.getString(PAR_HEAP_SERIALIZER)).getDeclaredConstructor().newInstance();
+			else
+				serializer = new JavaEventSerializer();
+		} catch (ReflectiveOperationException | IllegalArgumentException | SecurityException e) {
+			System.err.println("Could not instanciate Event Serializer: " + Configuration.getString(PAR_HEAP_SERIALIZER));
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		PagePool.setCapacity(Configuration.getInt(PAR_HEAP_PAGE_POOL, PagePool.DEFAULT_CAPACITY));
 		if(Configuration.contains(Simulator.PAR_SIM_HEAP)) {
 			try {
-				eventQueue = (EventQueue) Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP)).getDeclaredConstructor().newInstance();
-				System.err.println("Loaded HEAP: " + Configuration.getString(Simulator.PAR_SIM_HEAP));
+				Class<?> heapClass = Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP));
+				if(Configuration.contains(PAR_HEAP_OFFHEAP))
+					eventQueue = (EventQueue) heapClass.getDeclaredConstructor(boolean.class).newInstance(true);
+				else if(Configuration.contains(PAR_HEAP_SERIALIZER))
+					eventQueue = (EventQueue) heapClass.getDeclaredConstructor(EventSerializer.class).newInstance(serializer);
+				else
+					eventQueue = (EventQueue) heapClass.getDeclaredConstructor().newInstance();
+				System.err.println("Loaded HEAP: " + Configuration.getString(Simulator.PAR_SIM_HEAP)
+						+ (Configuration.contains(PAR_HEAP_OFFHEAP) ? " (off-heap)" : "")
+						+ (buffered ? " (buffered)" : ""));
 			} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
 					| SecurityException | ClassNotFoundException | NoSuchMethodException e) {
 				System.err.println("Could not instanciate Event Queue: " + Configuration.getString(Simulator.PAR_SIM_HEAP));
@@ -284,11 +1306,37 @@ public class BigEngineSim extends Engine
 		} else {
 			eventQueue = new Heap();
 		}	
+		if (pipelined && !buffered && !(eventQueue instanceof ConcurrentBigHeap || eventQueue instanceof ConcurrentBigHeapWithInterval))
+			throw new IllegalArgumentException(PAR_HEAP_PIPELINED + " needs " + PAR_HEAP_BUFFERED
+					+ " or a synchronized queue (ConcurrentBigHeap or ConcurrentBigHeapWithInterval): the next window"
+					+ " is removed while the tasks insert events");
+		if (tieBits > 0 && eventQueue instanceof RadixHeap)
+			throw new IllegalArgumentException("RadixHeap is a monotone queue and cannot be used with tie-break keys ("
+					+ PAR_HEAP_TIEBITS + " = " + tieBits + ")");
+		if (eventQueue instanceof ConcurrentBigHeapWithInterval) {
+			ConcurrentBigHeapWithInterval heap = (ConcurrentBigHeapWithInterval) eventQueue;
+			heap.setWidth(Configuration.getLong(PAR_HEAP_INTERVAL, ConcurrentBigHeapWithInterval.DEF_NO_TIME_INTERFERENCE));
+			if (Configuration.contains(PAR_HEAP_ADAPTIVE))
+				heap.setAdaptive(Configuration.getInt(PAR_HEAP_TARGET_BATCH, 64 * workers));
+		}
+		if (eventQueue instanceof BatchEventQueue) {
+			batchQueue = (BatchEventQueue) eventQueue;
+			maxBatch = Configuration.getInt(PAR_HEAP_BATCH, Integer.MAX_VALUE);
+			initialEvents = new EventBuffer();
+			if (Configuration.contains(PAR_HEAP_CAPACITY))
+				batchQueue.reserve(Configuration.getLong(PAR_HEAP_CAPACITY));
+		}
+		if (Configuration.contains(PAR_HEAP_LOOKAHEAD)) {
+			long lookahead = Configuration.getLong(PAR_HEAP_LOOKAHEAD);
+			for (int i = 0; i < MAX_PIDS; i++)
+				lookaheads.set(i, lookahead);
+			windowed = true;
+		}
 	}
 
 	public long pendingEvents()
 	{
-		return eventQueue.size();
+		return eventQueue.size() + (initialEvents == null ? 0 : initialEvents.size());
 	}
 
 
@@ -0,0 +1,347 @@
+package nova.peernet.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nova.peernet.core.queues.EventSerializer;
+import nova.peernet.core.queues.EventSink;
+import peernet.core.Node;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * A checkpoint of an experiment run by BigEngineSim: the events in the
+ * queue (in any order, with their queued times), the snapshots of the
+ * Snapshotable protocols, the random generator of CommonState, and the
+ * fields of the engine needed to go on from there.
+ *
+ * The checkpoint is streamed to a temporary file: create writes the
+ * fields and the number of events, add writes each event as it is handed
+ * over by the queue (see BatchEventQueue.copyTo), finish writes the states
+ * and the random generator, and commit renames the file over the previous
+ * checkpoint. It is read back the same way, with open, readEvents and
+ * readStates, so neither side holds the events of the queue in memory.
+ *
+ * In the file, nodes are written as their IDs, and Schedule payloads as
+ * their pid and schedId, to be resolved by the run that resumes.
+ * Sources are written with the serializer the first time they appear and
+ * as their position among the sources afterwards; other payloads and the
+ * snapshots and the random generator are written with the serializer.
+ */
+final class Checkpoint implements EventSink
+{
+
+	private static final int MAGIC = 0x50434b50;
+	private static final int VERSION = 3;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Tags of the sources and payloads.
+	 */
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_NEW = 1;
+	private static final byte TAG_SEEN = 2;
+	private static final byte TAG_SCHEDULE = 3;
+	private static final byte TAG_SERIALIZED = 4;
+
+	long time;
+	long nextlog;
+	long engineSeq;
+	int tieBits;
+	boolean windowed;
+	long[] lookaheads;
+	long traceStart;
+	long traceEnd;
+	long traceCount;
+	long traceSum;
+	long traceHash;
+	long eventCount;
+	List<State> states = new ArrayList<State>();
+	Object random;
+	int stateCount;
+
+	private File file;
+	private File tmp;
+	private FileChannel channel;
+	private EventSerializer serializer;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private Map<Address, Integer> sources;
+	private List<Address> sourceList;
+	private long written;
+
+	/**
+	 * The snapshot of protocol pid of a node.
+	 */
+	static final class State
+	{
+		final long node;
+		final int pid;
+		final Object snapshot;
+
+		State(long node, int pid, Object snapshot)
+		{
+			this.node = node;
+			this.pid = pid;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Returns the key of a Schedule payload of protocol pid, as resolved
+	 * by readEvents.
+	 */
+	static long scheduleKey(int pid, int schedId)
+	{
+		return ((long) pid << 32) | (schedId & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Starts writing the checkpoint to a temporary file next to the
+	 * specified one: writes the fields and the number of events that add
+	 * will receive.
+	 */
+	void create(File file, EventSerializer serializer, long events) throws IOException
+	{
+		this.file = file;
+		this.tmp = new File(file.getPath() + ".tmp");
+		this.serializer = serializer;
+		channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(time);
+		out.writeLong(nextlog);
+		out.writeLong(engineSeq);
+		out.writeInt(tieBits);
+		out.writeBoolean(windowed);
+		out.writeInt(lookaheads.length);
+		for (long lookahead : lookaheads)
+			out.writeLong(lookahead);
+		out.writeLong(traceStart);
+		out.writeLong(traceEnd);
+		out.writeLong(traceCount);
+		out.writeLong(traceSum);
+		out.writeLong(traceHash);
+		out.writeLong(events);
+		eventCount = events;
+		sources = new IdentityHashMap<Address, Integer>();
+		written = 0;
+	}
+
+	/**
+	 * Writes an event of the checkpoint, after create.
+	 */
+	@Override
+	public void add(long time, Address src, Node node, byte pid, Object event) throws IOException
+	{
+		if (written == eventCount)
+			throw new IOException("More than the " + eventCount + " events announced in checkpoint " + tmp);
+		written++;
+		out.writeLong(time);
+		out.writeLong(node == null ? -1 : node.getID());
+		out.writeByte(pid);
+		Integer source = src == null ? null : sources.get(src);
+		if (src == null)
+			out.writeByte(TAG_NULL);
+		else if (source != null) {
+			out.writeByte(TAG_SEEN);
+			out.writeInt(source);
+		} else {
+			sources.put(src, sources.size());
+			out.writeByte(TAG_NEW);
+			serializer.write(src, out);
+		}
+		if (event == null)
+			out.writeByte(TAG_NULL);
+		else if (event instanceof Schedule) {
+			out.writeByte(TAG_SCHEDULE);
+			out.writeInt(((Schedule) event).schedId);
+		} else {
+			out.writeByte(TAG_SERIALIZED);
+			serializer.write(event, out);
+		}
+	}
+
+	/**
+	 * Writes the states and the random generator, after all the events,
+	 * and drops the references of the checkpoint to them. Called on the
+	 * engine thread, between two batches, like create and add, so that
+	 * everything is saved as it is at that point; only commit is left to
+	 * the background writer.
+	 */
+	void finish() throws IOException
+	{
+		if (written != eventCount)
+			throw new IOException("Only " + written + " of the " + eventCount + " events announced in checkpoint " + tmp);
+		out.writeInt(states.size());
+		for (State state : states) {
+			out.writeLong(state.node);
+			out.writeByte(state.pid);
+			serializer.write(state.snapshot, out);
+		}
+		serializer.write(random, out);
+		out.writeInt(MAGIC);
+		out.flush();
+		stateCount = states.size();
+		states = null;
+		random = null;
+		sources = null;
+	}
+
+	/**
+	 * Forces the temporary file written by finish to disk, and renames it
+	 * over the checkpoint file, so that file always holds a whole
+	 * checkpoint.
+	 */
+	void commit() throws IOException
+	{
+		try {
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Closes and deletes the temporary file, after a failure.
+	 */
+	void abort()
+	{
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			// The checkpoint is discarded anyway.
+		}
+		if (tmp != null)
+			tmp.delete();
+	}
+
+	/**
+	 * Opens a checkpoint written by create, add, finish and commit, and
+	 * reads its fields; the events are then read by readEvents, and the
+	 * states and random generator by readStates.
+	 */
+	static Checkpoint open(File file, EventSerializer serializer) throws IOException
+	{
+		Checkpoint cp = new Checkpoint();
+		cp.file = file;
+		cp.serializer = serializer;
+		cp.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(cp.channel), BUFFER_SIZE));
+			cp.in = in;
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a checkpoint: " + file);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+			cp.time = in.readLong();
+			cp.nextlog = in.readLong();
+			cp.engineSeq = in.readLong();
+			cp.tieBits = in.readInt();
+			cp.windowed = in.readBoolean();
+			cp.lookaheads = new long[in.readInt()];
+			for (int i = 0; i < cp.lookaheads.length; i++)
+				cp.lookaheads[i] = in.readLong();
+			cp.traceStart = in.readLong();
+			cp.traceEnd = in.readLong();
+			cp.traceCount = in.readLong();
+			cp.traceSum = in.readLong();
+			cp.traceHash = in.readLong();
+			cp.eventCount = in.readLong();
+		} catch (IOException | RuntimeException e) {
+			cp.close();
+			throw e;
+		}
+		return cp;
+	}
+
+	/**
+	 * Reads the events of the checkpoint, after open, and hands them to the
+	 * sink. The nodes of the events are looked up by ID in nodes, and
+	 * their Schedule payloads by scheduleKey in schedules.
+	 */
+	void readEvents(Map<Long, Node> nodes, Map<Long, Schedule> schedules, EventSink events) throws IOException
+	{
+		sourceList = new ArrayList<Address>();
+		for (long i = 0; i < eventCount; i++) {
+			long time = in.readLong();
+			long id = in.readLong();
+			byte pid = in.readByte();
+			Node node = null;
+			if (id >= 0) {
+				node = nodes.get(id);
+				if (node == null)
+					throw new IOException("Checkpoint event for unknown node " + id + ": " + file);
+			}
+			Address src;
+			byte tag = in.readByte();
+			if (tag == TAG_NULL)
+				src = null;
+			else if (tag == TAG_SEEN)
+				src = sourceList.get(in.readInt());
+			else {
+				src = (Address) serializer.read(in);
+				sourceList.add(src);
+			}
+			Object event;
+			tag = in.readByte();
+			if (tag == TAG_NULL)
+				event = null;
+			else if (tag == TAG_SCHEDULE) {
+				int schedId = in.readInt();
+				event = schedules.get(scheduleKey(pid, schedId));
+				if (event == null)
+					throw new IOException("Checkpoint event with unknown schedule " + schedId + " of pid " + pid
+							+ " (not scheduled by the initializers): " + file);
+			} else
+				event = serializer.read(in);
+			events.add(time, src, node, pid, event);
+		}
+		sourceList = null;
+	}
+
+	/**
+	 * Reads the states and the random generator of the checkpoint, after
+	 * readEvents.
+	 */
+	void readStates() throws IOException
+	{
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			long id = in.readLong();
+			int pid = in.readByte() & 0xFF;
+			states.add(new State(id, pid, serializer.read(in)));
+		}
+		random = serializer.read(in);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Corrupt checkpoint: " + file);
+	}
+
+	/**
+	 * Closes the file opened by open.
+	 */
+	void close() throws IOException
+	{
+		in = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,277 @@
+package nova.peernet.core;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the work of BigEngineSim (see PAR_HEAP_METRICS): the events
+ * and batches taken from the queue, the time spent removing, dispatching
+ * and waiting for each batch, the time the workers spend executing events,
+ * and the size of the queue. The counters are written by the engine thread
+ * once per batch, and by the workers once per chain of events, so they
+ * cost a few clock reads per batch.
+ *
+ * The counters are exposed as an MBean, and optionally appended to a CSV
+ * file at a fixed wall-clock period, one line per period with the rates of
+ * that period.
+ */
+public class EngineMetrics implements EngineMetricsMBean
+{
+
+	private static final String OBJECT_NAME = "nova.peernet.core:type=BigEngineSim";
+
+	private static final String CSV_HEADER = "wall_ms,sim_time,events,events_per_s,batches,mean_batch,"
+			+ "remove_ms,dispatch_ms,wait_ms,utilization,queue_size";
+
+	private final int workers;
+	private final File file;
+	private final long period;
+	private long startNanos;
+	private volatile long events;
+	private volatile long batches;
+	private final AtomicLongArray histogram = new AtomicLongArray(Long.SIZE);
+	private volatile long removeNanos;
+	private volatile long dispatchNanos;
+	private volatile long waitNanos;
+	private final LongAdder busyNanos = new LongAdder();
+	private volatile long queueSize;
+	private volatile long simulationTime;
+
+	private ObjectName name;
+	private ScheduledExecutorService dumper;
+	private PrintStream csv;
+	private long lastNanos;
+	private long lastEvents;
+	private long lastBatches;
+	private long lastRemove;
+	private long lastDispatch;
+	private long lastWait;
+	private long lastBusy;
+
+	/**
+	 * Creates the metrics of an engine that runs events on the specified
+	 * number of worker threads. If file is not null, a line is appended to
+	 * it every period ms.
+	 */
+	EngineMetrics(int workers, File file, long period)
+	{
+		if (period <= 0)
+			throw new IllegalArgumentException("Invalid metrics period: " + period);
+		this.workers = workers;
+		this.file = file;
+		this.period = period;
+	}
+
+	/**
+	 * Registers the MBean and opens the CSV file, at the start of the
+	 * simulation loop.
+	 */
+	void start() throws FileNotFoundException
+	{
+		startNanos = System.nanoTime();
+		lastNanos = startNanos;
+		try {
+			name = new ObjectName(OBJECT_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("Engine: could not register the metrics MBean " + OBJECT_NAME + ": " + e);
+			name = null;
+		}
+		if (file == null)
+			return;
+		csv = new PrintStream(file);
+		csv.println(CSV_HEADER);
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-writer");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(this::dump, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records the time spent removing a batch from the queue.
+	 */
+	void removed(long nanos)
+	{
+		removeNanos += nanos;
+	}
+
+	/**
+	 * Records a batch of size events taken from the queue.
+	 */
+	void batch(int size)
+	{
+		if (size == 0)
+			return;
+		events += size;
+		batches++;
+		int k = 63 - Long.numberOfLeadingZeros(size);
+		histogram.lazySet(k, histogram.get(k) + 1);
+	}
+
+	/**
+	 * Records the time spent dispatching a batch.
+	 */
+	void dispatched(long nanos)
+	{
+		dispatchNanos += nanos;
+	}
+
+	/**
+	 * Records the time spent waiting for the workers at the end of a batch.
+	 */
+	void waited(long nanos)
+	{
+		waitNanos += nanos;
+	}
+
+	/**
+	 * Records the time a worker spent executing events. Called by the
+	 * workers.
+	 */
+	void ran(long nanos)
+	{
+		busyNanos.add(nanos);
+	}
+
+	/**
+	 * Records the state of the engine at the end of a batch.
+	 */
+	void batchDone(long time, long size)
+	{
+		simulationTime = time;
+		queueSize = size;
+	}
+
+	/**
+	 * Writes the last line of the CSV file, unregisters the MBean and prints
+	 * a summary to the standard error.
+	 */
+	void stop()
+	{
+		if (dumper != null) {
+			dumper.shutdown();
+			try {
+				dumper.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dump();
+			csv.close();
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// The MBean is gone already.
+			}
+		}
+		StringBuilder sizes = new StringBuilder();
+		for (int k = 0; k < histogram.length(); k++)
+			if (histogram.get(k) > 0)
+				sizes.append(' ').append(1L << k).append(':').append(histogram.get(k));
+		System.err.println(String.format(Locale.ROOT,
+				"Engine metrics: %d events in %d batches, %.0f events/s, remove %.1f ms, dispatch %.1f ms, "
+						+ "wait %.1f ms, utilization %.3f, batch sizes%s",
+				events, batches, getEventsPerSecond(), getRemoveMillis(), getDispatchMillis(), getWaitMillis(),
+				getUtilization(), sizes));
+	}
+
+	/**
+	 * Appends a line with the counters of the last period to the CSV file.
+	 */
+	private synchronized void dump()
+	{
+		long now = System.nanoTime();
+		long e = events, b = batches, r = removeNanos, d = dispatchNanos, w = waitNanos, busy = busyNanos.sum();
+		double seconds = Math.max(now - lastNanos, 1) / 1e9;
+		csv.println(String.format(Locale.ROOT, "%d,%d,%d,%.1f,%d,%.2f,%.3f,%.3f,%.3f,%.4f,%d",
+				(now - startNanos) / 1000000, simulationTime, e - lastEvents, (e - lastEvents) / seconds,
+				b - lastBatches, b == lastBatches ? 0.0 : (double) (e - lastEvents) / (b - lastBatches),
+				(r - lastRemove) / 1e6, (d - lastDispatch) / 1e6, (w - lastWait) / 1e6,
+				(busy - lastBusy) / (seconds * 1e9 * workers), queueSize));
+		csv.flush();
+		lastNanos = now;
+		lastEvents = e;
+		lastBatches = b;
+		lastRemove = r;
+		lastDispatch = d;
+		lastWait = w;
+		lastBusy = busy;
+	}
+
+	@Override
+	public long getEvents()
+	{
+		return events;
+	}
+
+	@Override
+	public long getBatches()
+	{
+		return batches;
+	}
+
+	@Override
+	public double getEventsPerSecond()
+	{
+		return events / (Math.max(System.nanoTime() - startNanos, 1) / 1e9);
+	}
+
+	@Override
+	public long[] getBatchSizeHistogram()
+	{
+		long[] counts = new long[histogram.length()];
+		for (int k = 0; k < counts.length; k++)
+			counts[k] = histogram.get(k);
+		return counts;
+	}
+
+	@Override
+	public double getRemoveMillis()
+	{
+		return removeNanos / 1e6;
+	}
+
+	@Override
+	public double getDispatchMillis()
+	{
+		return dispatchNanos / 1e6;
+	}
+
+	@Override
+	public double getWaitMillis()
+	{
+		return waitNanos / 1e6;
+	}
+
+	@Override
+	public double getUtilization()
+	{
+		return busyNanos.sum() / (Math.max(System.nanoTime() - startNanos, 1) * (double) workers);
+	}
+
+	@Override
+	public long getQueueSize()
+	{
+		return queueSize;
+	}
+
+	@Override
+	public long getSimulationTime()
+	{
+		return simulationTime;
+	}
+}
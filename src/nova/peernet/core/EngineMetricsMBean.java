@@ -0,0 +1,65 @@
+package nova.peernet.core;
+
+/**
+ * The management interface of EngineMetrics, registered with the platform
+ * MBean server as nova.peernet.core:type=BigEngineSim. Times are totals
+ * since the start of the experiment.
+ */
+public interface EngineMetricsMBean
+{
+
+	/**
+	 * Returns the number of events taken from the queue.
+	 */
+	long getEvents();
+
+	/**
+	 * Returns the number of batches taken from the queue.
+	 */
+	long getBatches();
+
+	/**
+	 * Returns the number of events per second of wall-clock time since the
+	 * start of the experiment.
+	 */
+	double getEventsPerSecond();
+
+	/**
+	 * Returns the number of batches of each size: element k counts the
+	 * batches with between 2^k and 2^(k+1) - 1 events.
+	 */
+	long[] getBatchSizeHistogram();
+
+	/**
+	 * Returns the time spent removing batches from the queue, in ms.
+	 */
+	double getRemoveMillis();
+
+	/**
+	 * Returns the time spent dispatching the events of batches to the
+	 * workers, or executing them on the engine thread, in ms.
+	 */
+	double getDispatchMillis();
+
+	/**
+	 * Returns the time spent waiting for the workers at the end of batches,
+	 * in ms.
+	 */
+	double getWaitMillis();
+
+	/**
+	 * Returns the fraction of the time of the workers spent executing
+	 * events since the start of the experiment.
+	 */
+	double getUtilization();
+
+	/**
+	 * Returns the number of events in the queue after the last batch.
+	 */
+	long getQueueSize();
+
+	/**
+	 * Returns the simulation time of the last batch.
+	 */
+	long getSimulationTime();
+}
@@ -0,0 +1,36 @@
+package nova.peernet.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event for the wait of the engine thread of
+ * BigEngineSim until the workers finish a batch.
+ */
+@Name("nova.peernet.BarrierWait")
+@Label("Barrier Wait")
+@Category({ "Peernet", "Engine" })
+@Description("The engine thread waited for the node chains of a batch.")
+@StackTrace(false)
+final class JfrBarrierWait extends jdk.jfr.Event
+{
+
+	@Label("Running Chains")
+	@Description("Number of node chains still running when the wait started.")
+	int chains;
+
+	/**
+	 * Ends the wait and commits it if it is being recorded.
+	 */
+	void finish(int chains)
+	{
+		end();
+		if (shouldCommit()) {
+			this.chains = chains;
+			commit();
+		}
+	}
+}
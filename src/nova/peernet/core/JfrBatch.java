@@ -0,0 +1,50 @@
+package nova.peernet.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event for a batch of BigEngineSim, from its removal
+ * from the queue until its events and controls have run.
+ */
+@Name("nova.peernet.Batch")
+@Label("Batch")
+@Category({ "Peernet", "Engine" })
+@Description("A batch of events executed by BigEngineSim.")
+@StackTrace(false)
+final class JfrBatch extends jdk.jfr.Event
+{
+
+	@Label("Events")
+	int events;
+
+	@Label("Nodes")
+	@Description("Number of nodes with events in the batch (node chains).")
+	int nodes;
+
+	@Label("First Time")
+	@Description("Simulation time of the first event.")
+	long firstTime;
+
+	@Label("Last Time")
+	@Description("Simulation time of the last event.")
+	long lastTime;
+
+	/**
+	 * Ends the batch and commits it if it is being recorded.
+	 */
+	void finish(int events, int nodes, long firstTime, long lastTime)
+	{
+		end();
+		if (shouldCommit()) {
+			this.events = events;
+			this.nodes = nodes;
+			this.firstTime = firstTime;
+			this.lastTime = lastTime;
+			commit();
+		}
+	}
+}
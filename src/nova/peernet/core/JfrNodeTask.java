@@ -0,0 +1,47 @@
+package nova.peernet.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A JDK Flight Recorder event for the execution of a node event by
+ * BigEngineSim, on a worker or on the engine thread. As there is one per
+ * event, only the tasks longer than the threshold (100 us by default, which
+ * a recording setting can lower) are recorded.
+ */
+@Name("nova.peernet.NodeTask")
+@Label("Node Task")
+@Category({ "Peernet", "Engine" })
+@Description("A node event handled by a protocol.")
+@StackTrace(false)
+@Threshold("100 us")
+final class JfrNodeTask extends jdk.jfr.Event
+{
+
+	@Label("Node")
+	long node;
+
+	@Label("Protocol")
+	int pid;
+
+	@Label("Simulation Time")
+	long time;
+
+	/**
+	 * Ends the task and commits it if it is being recorded.
+	 */
+	void finish(long node, int pid, long time)
+	{
+		end();
+		if (shouldCommit()) {
+			this.node = node;
+			this.pid = pid;
+			this.time = time;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package nova.peernet.core;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table (linear probing) from node IDs to
+ * non-negative ints, used by the engine to find the task chain of a node
+ * within a batch.
+ *
+ * Entries carry the stamp of the batch in which they were written, so
+ * clearing the table only bumps the current stamp: the table is reused
+ * across batches without being rehashed, cleared entry by entry or
+ * reallocated, and it only grows with the number of distinct nodes in a
+ * batch. It is not thread-safe.
+ */
+final class NodeTable
+{
+
+	/**
+	 * The default capacity of the table (a power of two).
+	 */
+	static final int DEF_CAPACITY = 1024;
+
+	private long[] keys;
+	private int[] values;
+	private int[] stamps;
+	private int mask;
+	private int stamp;
+	private int size;
+
+	NodeTable()
+	{
+		this(DEF_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty table for about capacity / 2 nodes, before growing.
+	 */
+	NodeTable(int capacity)
+	{
+		int cap = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		keys = new long[cap];
+		values = new int[cap];
+		stamps = new int[cap];
+		mask = cap - 1;
+		stamp = 1;
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of nodes in the table.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the value of the node with the specified ID, or -1 if the
+	 * node is not in the table.
+	 */
+	int get(long id)
+	{
+		for (int i = hash(id) & mask; stamps[i] == stamp; i = (i + 1) & mask) {
+			if (keys[i] == id)
+				return values[i];
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the node with the specified ID to the table.
+	 * Pre: get(id) == -1 && value >= 0
+	 */
+	void put(long id, int value)
+	{
+		if (2 * (size + 1) > keys.length)
+			grow();
+		int i = hash(id) & mask;
+		while (stamps[i] == stamp)
+			i = (i + 1) & mask;
+		keys[i] = id;
+		values[i] = value;
+		stamps[i] = stamp;
+		size++;
+	}
+
+	/**
+	 * Removes all the nodes from the table, in constant time (but for one
+	 * call every 2^32, which resets the stamps).
+	 */
+	void clear()
+	{
+		size = 0;
+		stamp++;
+		if (stamp == 0) {
+			Arrays.fill(stamps, 0);
+			stamp = 1;
+		}
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		int[] oldStamps = stamps;
+		int cap = 2 * oldKeys.length;
+		keys = new long[cap];
+		values = new int[cap];
+		stamps = new int[cap];
+		mask = cap - 1;
+		int live = stamp;
+		stamp = 1;
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldStamps[i] == live)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	private static int hash(long id)
+	{
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,460 @@
+package nova.peernet.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nova.peernet.core.queues.BatchEventQueue;
+import nova.peernet.core.queues.BigHeap;
+import nova.peernet.core.queues.EventBuffer;
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.core.CommonState;
+import peernet.core.Engine;
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * A parallel engine that partitions the nodes statically among a fixed set
+ * of worker threads. Each worker owns the event queue of its nodes and
+ * executes their events in time order, so the state of a node is only
+ * touched by one thread.
+ *
+ * Workers advance together through time windows (conservative
+ * synchronization): a window starts at the earliest pending event and
+ * spans the lookahead, the minimum delay of the events scheduled while an
+ * event is handled, so no event of a window can cause another one in the
+ * same window. Events for nodes of other partitions are appended to an
+ * outbox per destination, owned by the sending worker, and the receiver
+ * moves them to its queue when the next window starts; no locks are taken
+ * while a window runs. Control events are kept in a separate queue and run
+ * between windows, after the node events with the same time.
+ */
+public class PartitionedEngineSim extends Engine
+{
+
+	/**
+	 * Number of partitions (and worker threads). Defaults to the number of
+	 * available processors.
+	 */
+	private static final String PAR_HEAP_PARTITIONS = Simulator.PAR_SIM_HEAP + ".partitions";
+
+	/**
+	 * Minimum delay of the events scheduled while a node handles an event,
+	 * e.g. the minimum latency of the transport. Without it (or with 0),
+	 * each window holds a single time. An event scheduled with a smaller
+	 * delay may fall in the window being executed, after events that
+	 * already ran, so it stops the experiment with an IllegalStateException
+	 * (see PAR_HEAP_LOOKAHEAD_LENIENT).
+	 */
+	private static final String PAR_HEAP_LOOKAHEAD = Simulator.PAR_SIM_HEAP + ".lookahead";
+
+	/**
+	 * If present, an event scheduled with a delay below the lookahead of its
+	 * protocol only prints a warning and lowers the lookahead for the
+	 * following windows. The window being executed is already corrupted by
+	 * then, so the experiment is no longer equivalent to a sequential run.
+	 */
+	private static final String PAR_HEAP_LOOKAHEAD_LENIENT = Simulator.PAR_SIM_HEAP + ".lookaheadlenient";
+
+	/**
+	 * Number of possible protocol identifiers (pids are stored as bytes).
+	 */
+	private static final int MAX_PIDS = 256;
+
+	int partitions;
+	Worker[] workers;
+	EventQueue controlQueue;
+	AtomicLongArray lookaheads = new AtomicLongArray(MAX_PIDS);
+	boolean lenientLookahead = false;
+	ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+	CyclicBarrier barrier;
+
+	// Set by the barrier action for the next window.
+	long windowEnd;
+	int parity;
+	boolean stop;
+
+	/**
+	 * A partition: the queue of its nodes and the outboxes of the events it
+	 * sends to the other partitions. Outboxes are double-buffered by window
+	 * parity: the ones written during a window are drained in the next one.
+	 */
+	final class Worker implements Runnable
+	{
+		final int id;
+		EventQueue queue;
+		final EventBuffer[][] outbox;
+		final long[][] outboxMin;
+		final Event ev = new Event();
+		final SimulationContext context = new SimulationContext();
+
+		Worker(int id, EventQueue queue)
+		{
+			this.id = id;
+			this.queue = queue;
+			outbox = new EventBuffer[2][partitions];
+			outboxMin = new long[2][partitions];
+			for (int p = 0; p < 2; p++) {
+				for (int i = 0; i < partitions; i++) {
+					outbox[p][i] = new EventBuffer();
+					outboxMin[p][i] = Long.MAX_VALUE;
+				}
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			SimulationContext.bind(context);
+			try {
+				while (true) {
+					barrier.await();
+					if (stop)
+						break;
+					runWindow();
+				}
+			} catch (InterruptedException | BrokenBarrierException e) {
+				System.err.println("Worker " + id + " interrupted.");
+			} catch (Throwable e) {
+				System.err.println("Execution of simulated task failed.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		/**
+		 * Moves the events sent during the previous window to the queue and
+		 * executes the local events of the window.
+		 */
+		private void runWindow()
+		{
+			int prev = parity ^ 1;
+			for (Worker w : workers) {
+				EventBuffer in = w.outbox[prev][id];
+				if (!in.isEmpty()) {
+					if (queue instanceof BatchEventQueue)
+						((BatchEventQueue) queue).addAll(in);
+					else
+						in.drainTo(queue);
+				}
+				w.outboxMin[prev][id] = Long.MAX_VALUE;
+			}
+			currentWorker.set(this);
+			try {
+				while (queue.size() > 0 && queue.getNextTime() <= windowEnd) {
+					Event first = queue.removeFirst();
+					ev.time = first.time;
+					ev.src = first.src;
+					ev.node = first.node;
+					ev.pid = first.pid;
+					ev.event = first.event;
+					execute(this, ev);
+				}
+			} finally {
+				currentWorker.set(null);
+				ev.src = null;
+				ev.node = null;
+				ev.event = null;
+			}
+		}
+
+		/**
+		 * Schedules an event scheduled by this worker, for its queue or for
+		 * the outbox of the partition of the node.
+		 */
+		void add(long time, Address src, Node node, byte pid, Object event)
+		{
+			int dst = partition(node);
+			if (dst == id) {
+				queue.add(time, src, node, pid, event);
+				return;
+			}
+			outbox[parity][dst].add(time, src, node, pid, event);
+			if (time < outboxMin[parity][dst])
+				outboxMin[parity][dst] = time;
+		}
+
+		long pending()
+		{
+			long res = queue.size();
+			for (int p = 0; p < 2; p++)
+				for (int i = 0; i < partitions; i++)
+					res += outbox[p][i].size();
+			return res;
+		}
+	}
+
+	@Override
+	public void startExperiment()
+	{
+		super.startExperiment();
+
+		barrier = new CyclicBarrier(partitions, this::nextWindow);
+		parity = 1;
+		windowEnd = Long.MIN_VALUE;
+		Thread[] threads = new Thread[partitions];
+		for (int i = 0; i < partitions; i++) {
+			threads[i] = new Thread(workers[i], "partition-" + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			while (true) {
+				try {
+					t.join();
+					break;
+				} catch (InterruptedException e) {
+					;
+				}
+			}
+		}
+
+		// analysis after the simulation
+		for (int j = 0; j<controls.length; ++j)
+		{
+			if (controlSchedules[j].fin)
+				controls[j].execute();
+		}
+	}
+
+	/**
+	 * Barrier action, run while all the workers wait: executes the control
+	 * events that closed the previous window and computes the next one.
+	 */
+	private void nextWindow()
+	{
+		if (runControls(windowEnd)) {
+			stop = true;
+			return;
+		}
+		parity ^= 1;
+		int sent = parity ^ 1;
+		long next = controlQueue.getNextTime();
+		long pending = controlQueue.size();
+		for (Worker w : workers) {
+			next = Math.min(next, w.queue.getNextTime());
+			pending += w.queue.size();
+			for (int i = 0; i < partitions; i++) {
+				next = Math.min(next, w.outboxMin[sent][i]);
+				pending += w.outbox[sent][i].size();
+			}
+		}
+		if (pending == 0) {
+			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
+			stop = true;
+			return;
+		}
+		if (next >= endtime) {
+			System.err.println("Engine: reached end time, quitting, leaving " + pendingEvents() + " unprocessed events in the queue");
+			stop = true;
+			return;
+		}
+		if (next >= nextlog) {
+			System.err.println("Current time: " + next);
+			do {
+				nextlog += logtime;
+			}
+			while (next >= nextlog);
+		}
+		long end = next + Math.max(minLookahead() - 1, 0);
+		if (end < next)
+			end = Long.MAX_VALUE;
+		end = Math.min(end, controlQueue.getNextTime());
+		windowEnd = Math.min(end, endtime - 1);
+		CommonState.setTime(next);
+	}
+
+	/**
+	 * Executes the control events with time up to the specified one.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean runControls(long upTo)
+	{
+		boolean ret = false;
+		while (controlQueue.size() > 0 && controlQueue.getNextTime() <= upTo) {
+			Event ev = controlQueue.removeFirst();
+			long time = ev.time;
+			int pid = ev.pid;
+			CommonState.setTime(time);
+			ret = ret || controls[pid].execute();
+			long delay = controlSchedules[pid].nextDelay(time);
+			if (delay >= 0)
+				addEventAt(time + delay, null, null, pid, null);
+		}
+		return ret;
+	}
+
+	/**
+	 * Executes a node event on the worker of its partition.
+	 */
+	private void execute(Worker w, Event ev)
+	{
+		long time = ev.time;
+		int pid = ev.pid;
+		CommonState.setTime(time);
+		if (!ev.node.isUp())
+			return;
+		w.context.enter(time, ev.node, pid);
+		try {
+			Protocol prot = ev.node.getProtocol(pid);
+			if (ev.event instanceof Schedule) {
+				prot.nextCycle(((Schedule) ev.event).schedId);
+
+				long delay = prot.nextDelay();
+				if (delay == 0)
+					delay = ((Schedule) ev.event).nextDelay(time);
+
+				if (delay > 0)
+					addEventIn(delay, null, ev.node, pid, ev.event);
+			} else // call Protocol.processEvent()
+				prot.processEvent(ev.src, ev.event);
+		} finally {
+			w.context.exit();
+		}
+	}
+
+	/**
+	 * Returns the partition of the specified node.
+	 */
+	private int partition(Node node)
+	{
+		return (int) Math.floorMod(node.getID(), (long) partitions);
+	}
+
+	/**
+	 * Returns the smallest lookahead of all the protocols.
+	 */
+	private long minLookahead()
+	{
+		long res = Long.MAX_VALUE;
+		for (int i = 0; i < MAX_PIDS; i++)
+			res = Math.min(res, lookaheads.get(i));
+		return res;
+	}
+
+	/**
+	 * Declares the minimum delay of the events scheduled while protocol pid
+	 * handles an event. Windows span the smallest lookahead of all the
+	 * protocols; a smaller delay observed during the experiment stops it,
+	 * or lowers the lookahead of the protocol with
+	 * PAR_HEAP_LOOKAHEAD_LENIENT.
+	 */
+	public void setLookahead(int pid, long minDelay)
+	{
+		if (minDelay < 0)
+			throw new IllegalArgumentException("Negative lookahead for pid " + pid + ": " + minDelay);
+		lookaheads.set(pid, minDelay);
+	}
+
+	/**
+	 * Returns the current lookahead of protocol pid.
+	 */
+	public long getLookahead(int pid)
+	{
+		return lookaheads.get(pid);
+	}
+
+	public void addEventAt(long time, Address src, Node node, int pid, Object event)
+	{
+		Worker w = currentWorker.get();
+		SimulationContext ctx = w != null ? w.context : null;
+		if (ctx != null && time - ctx.time < lookaheads.get(ctx.pid)) {
+			if (!lenientLookahead)
+				throw new IllegalStateException("pid " + ctx.pid + " scheduled an event with delay " + (time - ctx.time)
+						+ ", below its lookahead " + lookaheads.get(ctx.pid) + ": the current window is no longer free of"
+						+ " causal dependencies (see " + PAR_HEAP_LOOKAHEAD_LENIENT + ")");
+			long prev = lookaheads.getAndAccumulate(ctx.pid, time - ctx.time, Math::min);
+			if (time - ctx.time < prev)
+				System.err.println("Engine: pid " + ctx.pid + " scheduled an event with delay " + (time - ctx.time)
+						+ ", below its lookahead " + prev + "; lowering the lookahead");
+		}
+		if (node == null) {
+			synchronized (controlQueue) {
+				controlQueue.add(time, src, node, (byte) pid, event);
+			}
+		} else if (w != null)
+			w.add(time, src, node, (byte) pid, event);
+		else
+			workers[partition(node)].queue.add(time, src, node, (byte) pid, event);
+	}
+
+	/**
+	 * Schedules an event after the specified delay. On a worker, the delay
+	 * counts from the time of the event being executed (see
+	 * SimulationContext).
+	 */
+	@Override
+	public void addEventIn(long delay, Address src, Node node, int pid, Object event)
+	{
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay for pid " + pid + ": " + delay);
+		addEventAt(SimulationContext.getTime() + delay, src, node, pid, event);
+	}
+
+	@Override
+	protected void createHeaps()
+	{
+		partitions = Configuration.getInt(PAR_HEAP_PARTITIONS, Runtime.getRuntime().availableProcessors());
+		if (partitions < 1)
+			throw new IllegalArgumentException("Invalid number of partitions: " + partitions);
+		workers = new Worker[partitions];
+		try {
+			for (int i = 0; i < partitions; i++)
+				workers[i] = new Worker(i, newQueue());
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
+				| SecurityException | ClassNotFoundException | NoSuchMethodException e) {
+			System.err.println("Could not instanciate Event Queue: " + Configuration.getString(Simulator.PAR_SIM_HEAP));
+			e.printStackTrace();
+			System.exit(1);
+		}
+		controlQueue = new BigHeap();
+		long lookahead = Configuration.getLong(PAR_HEAP_LOOKAHEAD, 0);
+		for (int i = 0; i < MAX_PIDS; i++)
+			lookaheads.set(i, lookahead);
+		lenientLookahead = Configuration.contains(PAR_HEAP_LOOKAHEAD_LENIENT);
+		System.err.println("Loaded HEAP: " + workers[0].queue.getClass().getName() + " (" + partitions + " partitions)");
+	}
+
+	/**
+	 * Creates the queue of a partition: the configured queue class, or a
+	 * BigHeap.
+	 */
+	private EventQueue newQueue() throws InstantiationException, IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException, ClassNotFoundException
+	{
+		if (!Configuration.contains(Simulator.PAR_SIM_HEAP))
+			return new BigHeap();
+		Class<?> heapClass = Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP));
+		return (EventQueue) heapClass.getDeclaredConstructor().newInstance();
+	}
+
+	public long pendingEvents()
+	{
+		long res = controlQueue.size();
+		for (Worker w : workers)
+			res += w.pending();
+		return res;
+	}
+
+
+
+	@Override
+	public void blockingInitializerStart()
+	{
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+
+
+
+	@Override
+	public void blockingInitializerDone()
+	{
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+}
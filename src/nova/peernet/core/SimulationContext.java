@@ -0,0 +1,92 @@
+package nova.peernet.core;
+
+import peernet.core.CommonState;
+import peernet.core.Node;
+
+/**
+ * The event being executed by the current thread: its time, node and
+ * protocol. The parallel engines run the events of a batch or window on
+ * several threads at once, possibly with different times, so protocols
+ * must read these values here rather than from CommonState, which the
+ * engines only update from their own thread.
+ *
+ * Outside of an event (e.g. in controls and initializers), the static
+ * getters return the values of CommonState.
+ */
+public class SimulationContext
+{
+
+	private static final ThreadLocal<SimulationContext> CURRENT = new ThreadLocal<SimulationContext>();
+
+	boolean active = false;
+	long time;
+	Node node;
+	int pid;
+
+	/**
+	 * Makes ctx the context of the current thread. Engines bind one context
+	 * per worker thread and update it for each event, with enter and exit.
+	 */
+	static void bind(SimulationContext ctx)
+	{
+		CURRENT.set(ctx);
+	}
+
+	/**
+	 * Starts executing an event on the thread of this context.
+	 */
+	void enter(long time, Node node, int pid)
+	{
+		this.time = time;
+		this.node = node;
+		this.pid = pid;
+		active = true;
+	}
+
+	/**
+	 * Ends the event started by enter.
+	 */
+	void exit()
+	{
+		active = false;
+		node = null;
+	}
+
+	/**
+	 * Returns the context of the current thread if it is executing an
+	 * event, or null.
+	 */
+	static SimulationContext current()
+	{
+		SimulationContext ctx = CURRENT.get();
+		return ctx != null && ctx.active ? ctx : null;
+	}
+
+	/**
+	 * Returns the time of the event being executed by the current thread.
+	 */
+	public static long getTime()
+	{
+		SimulationContext ctx = current();
+		return ctx != null ? ctx.time : CommonState.getTime();
+	}
+
+	/**
+	 * Returns the node of the event being executed by the current thread.
+	 */
+	public static Node getNode()
+	{
+		SimulationContext ctx = current();
+		return ctx != null ? ctx.node : CommonState.getNode();
+	}
+
+	/**
+	 * Returns the protocol of the event being executed by the current
+	 * thread.
+	 */
+	public static int getPid()
+	{
+		SimulationContext ctx = current();
+		return ctx != null ? ctx.pid : CommonState.getPid();
+	}
+}
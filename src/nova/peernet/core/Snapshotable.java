@@ -0,0 +1,26 @@
+package nova.peernet.core;
+
+/**
+ * A protocol whose state can be saved and restored, so that an optimistic
+ * engine (TimeWarpEngineSim) can execute its events ahead of the rest of
+ * the simulation and undo them when an earlier event arrives.
+ *
+ * The state saved must include everything the protocol changes while
+ * handling an event. Effects outside the protocols of the node (output,
+ * static fields, other nodes) cannot be undone.
+ */
+public interface Snapshotable
+{
+
+	/**
+	 * Returns a copy of the state of the protocol, which the protocol must
+	 * not modify afterwards.
+	 */
+	Object snapshot();
+
+	/**
+	 * Restores the state returned by an earlier call to snapshot. Each
+	 * snapshot is restored at most once.
+	 */
+	void restore(Object snapshot);
+}
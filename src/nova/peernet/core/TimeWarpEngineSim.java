@@ -0,0 +1,627 @@
+package nova.peernet.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.LockSupport;
+
+import nova.peernet.core.queues.BigHeap;
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.core.CommonState;
+import peernet.core.Engine;
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * An optimistic parallel engine (Time Warp). As in PartitionedEngineSim,
+ * the nodes are partitioned statically among worker threads, each owning
+ * the queue of its nodes, but workers do not wait for each other: each one
+ * executes its events in time order as soon as it has them, ahead of the
+ * others, saving the state of the node before each event.
+ *
+ * When an event arrives at a partition that has already executed later
+ * events (a straggler), or an event it has executed is cancelled, the
+ * partition rolls back: it restores the state of the nodes, puts the
+ * undone events back in its queue and sends an anti-message for each event
+ * they scheduled, which cancels the event wherever it is (possibly rolling
+ * back its partition in turn).
+ *
+ * Only protocols that implement Snapshotable can be rolled back. Events of
+ * other protocols are executed once no earlier event can arrive, i.e. when
+ * their time reaches the global virtual time (GVT): the smallest time of
+ * an event not yet executed, or in transit, anywhere. The GVT is computed
+ * periodically while the workers pause; executed events older than it can
+ * never be rolled back, so their saved state is then discarded (fossil
+ * collection). Control events run during these pauses, once the GVT has
+ * passed their time, so they always see a consistent state; events they
+ * schedule directly are not rolled back.
+ */
+public class TimeWarpEngineSim extends Engine
+{
+
+	/**
+	 * Number of partitions (and worker threads). Defaults to the number of
+	 * available processors.
+	 */
+	private static final String PAR_HEAP_PARTITIONS = Simulator.PAR_SIM_HEAP + ".partitions";
+
+	/**
+	 * Interval between two computations of the GVT, in microseconds
+	 * (DEF_GVT_INTERVAL by default).
+	 */
+	private static final String PAR_HEAP_GVT_INTERVAL = Simulator.PAR_SIM_HEAP + ".gvtinterval";
+
+	/**
+	 * How far ahead of the GVT, in simulated time, a partition may execute
+	 * events. Unbounded by default.
+	 */
+	private static final String PAR_HEAP_OPTIMISM = Simulator.PAR_SIM_HEAP + ".optimism";
+
+	/**
+	 * Maximum number of executed events a partition keeps for rollback
+	 * (DEF_UNCOMMITTED by default). A partition that reaches it waits for
+	 * the next fossil collection, which bounds the memory used by saved
+	 * states.
+	 */
+	private static final String PAR_HEAP_UNCOMMITTED = Simulator.PAR_SIM_HEAP + ".uncommitted";
+
+	private static final long DEF_GVT_INTERVAL = 1000;
+
+	private static final int DEF_UNCOMMITTED = 1 << 20;
+
+	/**
+	 * How long an idle worker waits before looking for new events again,
+	 * in nanoseconds.
+	 */
+	private static final long IDLE_NANOS = 50000;
+
+	int partitions;
+	Partition[] parts;
+	EventQueue controlQueue;
+	ThreadLocal<Partition> currentPartition = new ThreadLocal<Partition>();
+	CyclicBarrier barrier;
+	long gvtInterval;
+	long optimism;
+	int maxUncommitted;
+
+	// Set while the workers pause.
+	volatile boolean pause;
+	long gvt = Long.MIN_VALUE;
+	long limit = Long.MIN_VALUE;
+	boolean stop;
+
+	/**
+	 * An event sent to a partition. Its state is only changed by the
+	 * partition of its node.
+	 */
+	static final class Message
+	{
+		static final int TRANSIT = 0;
+		static final int PENDING = 1;
+		static final int EXECUTED = 2;
+		static final int CANCELLED = 3;
+
+		final long time;
+		final Address src;
+		final Node node;
+		final byte pid;
+		final Object event;
+		final int dst;
+		int state = TRANSIT;
+
+		Message(long time, Address src, Node node, byte pid, Object event, int dst)
+		{
+			this.time = time;
+			this.src = src;
+			this.node = node;
+			this.pid = pid;
+			this.event = event;
+			this.dst = dst;
+		}
+	}
+
+	/**
+	 * An executed event that may still be rolled back: the state of its
+	 * node before it, and the events it scheduled.
+	 */
+	static final class Record
+	{
+		final Message msg;
+		final boolean reversible;
+		Object[] state;
+		ArrayList<Message> sent;
+
+		Record(Message msg, boolean reversible)
+		{
+			this.msg = msg;
+			this.reversible = reversible;
+		}
+	}
+
+	/**
+	 * A partition: the queue of its nodes, the events and anti-messages sent
+	 * to it by the other partitions, and its executed events, in execution
+	 * (and time) order.
+	 */
+	final class Partition implements Runnable
+	{
+		final int id;
+		final EventQueue queue;
+		final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+		final ConcurrentLinkedQueue<Message> antiInbox = new ConcurrentLinkedQueue<Message>();
+		final ArrayDeque<Record> history = new ArrayDeque<Record>();
+		final ArrayList<Message> cancels = new ArrayList<Message>();
+		final SimulationContext context = new SimulationContext();
+		Record current;
+		long committed;
+		long rolledBack;
+
+		Partition(int id, EventQueue queue)
+		{
+			this.id = id;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run()
+		{
+			currentPartition.set(this);
+			SimulationContext.bind(context);
+			try {
+				while (true) {
+					if (pause) {
+						barrier.await();
+						barrier.await();
+						if (stop)
+							break;
+						fossilCollect();
+					}
+					receive();
+					if (!executeNext())
+						LockSupport.parkNanos(IDLE_NANOS);
+				}
+			} catch (InterruptedException | BrokenBarrierException e) {
+				System.err.println("Partition " + id + " interrupted.");
+			} catch (Throwable e) {
+				System.err.println("Execution of simulated task failed.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		/**
+		 * Handles the events and anti-messages sent by the other partitions.
+		 */
+		private void receive()
+		{
+			Message m;
+			while ((m = inbox.poll()) != null) {
+				if (m.state == Message.CANCELLED)
+					continue;
+				if (!history.isEmpty() && m.time < history.peekLast().msg.time)
+					rollback(m.time, null);
+				enqueue(m);
+			}
+			while ((m = antiInbox.poll()) != null)
+				cancel(m);
+		}
+
+		/**
+		 * Cancels an event of this partition. If it was executed, the
+		 * partition rolls back to the state before it.
+		 */
+		private void cancel(Message m)
+		{
+			if (m.state == Message.EXECUTED)
+				rollback(m.time, m);
+			// Events in the queue are dropped when removed; events in
+			// transit, when received.
+			m.state = Message.CANCELLED;
+		}
+
+		private void enqueue(Message m)
+		{
+			m.state = Message.PENDING;
+			queue.add(m.time, m.src, m.node, m.pid, m);
+		}
+
+		/**
+		 * Executes the next event of the queue, if allowed.
+		 *
+		 * @return false if there was no event to execute.
+		 */
+		private boolean executeNext()
+		{
+			while (queue.size() > 0) {
+				long time = queue.getNextTime();
+				if (time > limit)
+					return false;
+				// Events at the GVT can always execute, so the GVT advances.
+				if (time > gvt && history.size() >= maxUncommitted)
+					return false;
+				Message m = (Message) queue.removeFirst().event;
+				if (m.state == Message.CANCELLED)
+					continue;
+				boolean reversible = m.node.getProtocol(m.pid) instanceof Snapshotable;
+				if (!reversible && m.time > gvt) {
+					enqueue(m);
+					return false;
+				}
+				execute(m, reversible);
+				return true;
+			}
+			return false;
+		}
+
+		private void execute(Message m, boolean reversible)
+		{
+			Record r = new Record(m, reversible);
+			if (reversible)
+				r.state = snapshot(m.node);
+			m.state = Message.EXECUTED;
+			current = r;
+			CommonState.setTime(m.time);
+			context.enter(m.time, m.node, m.pid);
+			try {
+				if (m.node.isUp())
+					handle(m, m.time);
+			} finally {
+				context.exit();
+				current = null;
+			}
+			history.addLast(r);
+		}
+
+		/**
+		 * Undoes the executed events later than the specified time or, if
+		 * target is not null, the events executed since target (inclusive),
+		 * and cancels the events they scheduled.
+		 */
+		private void rollback(long time, Message target)
+		{
+			while (!history.isEmpty()) {
+				Record r = history.peekLast();
+				if (target == null && r.msg.time <= time)
+					break;
+				history.pollLast();
+				if (!r.reversible)
+					throw new IllegalStateException("Cannot roll back an event of protocol " + r.msg.pid
+							+ " at time " + r.msg.time + ": it does not implement Snapshotable");
+				restore(r.msg.node, r.state);
+				rolledBack++;
+				if (r.sent != null)
+					cancels.addAll(r.sent);
+				if (r.msg == target)
+					break;
+				enqueue(r.msg);
+			}
+			// Cancelling a local event may roll back further, adding to cancels.
+			while (!cancels.isEmpty()) {
+				Message s = cancels.remove(cancels.size() - 1);
+				if (s.dst == id)
+					cancel(s);
+				else
+					parts[s.dst].antiInbox.add(s);
+			}
+		}
+
+		/**
+		 * Discards the executed events older than the GVT.
+		 */
+		private void fossilCollect()
+		{
+			while (!history.isEmpty() && history.peekFirst().msg.time < gvt) {
+				history.pollFirst();
+				committed++;
+			}
+		}
+
+		/**
+		 * Sends an event scheduled by this partition.
+		 */
+		void send(long time, Address src, Node node, byte pid, Object event)
+		{
+			Message m = new Message(time, src, node, pid, event, partition(node));
+			if (current != null) {
+				if (current.sent == null)
+					current.sent = new ArrayList<Message>(2);
+				current.sent.add(m);
+			}
+			if (m.dst == id)
+				enqueue(m);
+			else
+				parts[m.dst].inbox.add(m);
+		}
+
+		/**
+		 * Returns the smallest time of the events of this partition not yet
+		 * executed or cancelled (possibly earlier, if a cancelled event is
+		 * still in the queue).
+		 * Pre: the partition is paused.
+		 */
+		long nextTime()
+		{
+			long res = queue.getNextTime();
+			for (Message m : inbox)
+				res = Math.min(res, m.time);
+			for (Message m : antiInbox)
+				res = Math.min(res, m.time);
+			return res;
+		}
+
+		long pending()
+		{
+			return queue.size() + inbox.size();
+		}
+	}
+
+	@Override
+	public void startExperiment()
+	{
+		super.startExperiment();
+
+		barrier = new CyclicBarrier(partitions + 1);
+		Thread[] threads = new Thread[partitions];
+		for (int i = 0; i < partitions; i++) {
+			threads[i] = new Thread(parts[i], "partition-" + i);
+			threads[i].start();
+		}
+		try {
+			while (!stop) {
+				LockSupport.parkNanos(gvtInterval * 1000);
+				pause = true;
+				barrier.await();
+				pause = false;
+				stop = nextRound();
+				barrier.await();
+			}
+		} catch (InterruptedException | BrokenBarrierException e) {
+			System.err.println("Engine interrupted.");
+			System.exit(1);
+		}
+		for (Thread t : threads) {
+			while (true) {
+				try {
+					t.join();
+					break;
+				} catch (InterruptedException e) {
+					;
+				}
+			}
+		}
+		long committed = 0, rolledBack = 0;
+		for (Partition p : parts) {
+			committed += p.committed + p.history.size();
+			rolledBack += p.rolledBack;
+		}
+		System.err.println("Engine: executed " + committed + " events, rolled back " + rolledBack);
+
+		// analysis after the simulation
+		for (int j = 0; j<controls.length; ++j)
+		{
+			if (controlSchedules[j].fin)
+				controls[j].execute();
+		}
+	}
+
+	/**
+	 * Run while all the workers pause: computes the GVT, executes the
+	 * control events before it and sets how far the workers may go next.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean nextRound()
+	{
+		long next = computeGvt();
+		while (controlQueue.size() > 0 && controlQueue.getNextTime() < Math.min(next, endtime)) {
+			if (runControl())
+				return true;
+			next = computeGvt();
+		}
+		gvt = next;
+		if (gvt == Long.MAX_VALUE && controlQueue.size() == 0) {
+			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
+			return true;
+		}
+		if (Math.min(gvt, controlQueue.getNextTime()) >= endtime) {
+			System.err.println("Engine: reached end time, quitting, leaving " + pendingEvents() + " unprocessed events in the queue");
+			return true;
+		}
+		if (gvt >= nextlog && gvt < Long.MAX_VALUE) {
+			System.err.println("Current time: " + gvt);
+			do {
+				nextlog += logtime;
+			}
+			while (gvt >= nextlog);
+		}
+		long end = Math.min(controlQueue.getNextTime(), endtime - 1);
+		long ahead = gvt + optimism;
+		limit = ahead < gvt ? end : Math.min(end, ahead);
+		return false;
+	}
+
+	/**
+	 * Returns the smallest time of an event not yet executed or in transit.
+	 * Pre: the workers are paused.
+	 */
+	private long computeGvt()
+	{
+		long res = Long.MAX_VALUE;
+		for (Partition p : parts)
+			res = Math.min(res, p.nextTime());
+		return res;
+	}
+
+	/**
+	 * Executes the next control event.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean runControl()
+	{
+		Event ev = controlQueue.removeFirst();
+		long time = ev.time;
+		int pid = ev.pid;
+		CommonState.setTime(time);
+		boolean ret = controls[pid].execute();
+		long delay = controlSchedules[pid].nextDelay(time);
+		if (delay >= 0)
+			addEventAt(time + delay, null, null, pid, null);
+		return ret;
+	}
+
+	/**
+	 * Handles a node event, as the other engines do.
+	 */
+	private void handle(Message m, long time)
+	{
+		Protocol prot = m.node.getProtocol(m.pid);
+		if (m.event instanceof Schedule) {
+			prot.nextCycle(((Schedule) m.event).schedId);
+
+			long delay = prot.nextDelay();
+			if (delay == 0)
+				delay = ((Schedule) m.event).nextDelay(time);
+
+			if (delay > 0)
+				addEventIn(delay, null, m.node, m.pid, m.event);
+		} else // call Protocol.processEvent()
+			prot.processEvent(m.src, m.event);
+	}
+
+	/**
+	 * Returns the state of the protocols of the node that can be restored.
+	 */
+	private static Object[] snapshot(Node node)
+	{
+		Object[] state = new Object[node.protocolSize()];
+		for (int i = 0; i < state.length; i++) {
+			Protocol prot = node.getProtocol(i);
+			if (prot instanceof Snapshotable)
+				state[i] = ((Snapshotable) prot).snapshot();
+		}
+		return state;
+	}
+
+	private static void restore(Node node, Object[] state)
+	{
+		for (int i = 0; i < state.length; i++) {
+			Protocol prot = node.getProtocol(i);
+			if (prot instanceof Snapshotable)
+				((Snapshotable) prot).restore(state[i]);
+		}
+	}
+
+	/**
+	 * Returns the partition of the specified node.
+	 */
+	private int partition(Node node)
+	{
+		return (int) Math.floorMod(node.getID(), (long) partitions);
+	}
+
+	/**
+	 * Schedules an event. Events for controls are not rolled back, even
+	 * when a node event schedules them.
+	 */
+	public void addEventAt(long time, Address src, Node node, int pid, Object event)
+	{
+		Partition p = currentPartition.get();
+		if (node == null) {
+			synchronized (controlQueue) {
+				controlQueue.add(time, src, node, (byte) pid, event);
+			}
+		} else if (p != null)
+			p.send(time, src, node, (byte) pid, event);
+		else {
+			// Before the experiment starts, or from a control while the
+			// workers pause.
+			Message m = new Message(time, src, node, (byte) pid, event, partition(node));
+			parts[m.dst].inbox.add(m);
+		}
+	}
+
+	/**
+	 * Schedules an event after the specified delay. On a worker, the delay
+	 * counts from the time of the event being executed (see
+	 * SimulationContext).
+	 */
+	@Override
+	public void addEventIn(long delay, Address src, Node node, int pid, Object event)
+	{
+		if (delay < 0)
+			throw new IllegalArgumentException("Negative delay for pid " + pid + ": " + delay);
+		addEventAt(SimulationContext.getTime() + delay, src, node, pid, event);
+	}
+
+	@Override
+	protected void createHeaps()
+	{
+		partitions = Configuration.getInt(PAR_HEAP_PARTITIONS, Runtime.getRuntime().availableProcessors());
+		if (partitions < 1)
+			throw new IllegalArgumentException("Invalid number of partitions: " + partitions);
+		gvtInterval = Configuration.getLong(PAR_HEAP_GVT_INTERVAL, DEF_GVT_INTERVAL);
+		optimism = Configuration.getLong(PAR_HEAP_OPTIMISM, Long.MAX_VALUE);
+		maxUncommitted = Configuration.getInt(PAR_HEAP_UNCOMMITTED, DEF_UNCOMMITTED);
+		if (gvtInterval < 0 || optimism < 0 || maxUncommitted < 1)
+			throw new IllegalArgumentException("Invalid Time Warp parameters: gvtinterval " + gvtInterval
+					+ ", optimism " + optimism + ", uncommitted " + maxUncommitted);
+		parts = new Partition[partitions];
+		try {
+			for (int i = 0; i < partitions; i++)
+				parts[i] = new Partition(i, newQueue());
+		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
+				| SecurityException | ClassNotFoundException | NoSuchMethodException e) {
+			System.err.println("Could not instanciate Event Queue: " + Configuration.getString(Simulator.PAR_SIM_HEAP));
+			e.printStackTrace();
+			System.exit(1);
+		}
+		controlQueue = new BigHeap();
+		System.err.println("Loaded HEAP: " + parts[0].queue.getClass().getName() + " (" + partitions + " partitions, optimistic)");
+	}
+
+	/**
+	 * Creates the queue of a partition: the configured queue class, or a
+	 * BigHeap.
+	 */
+	private EventQueue newQueue() throws InstantiationException, IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException, ClassNotFoundException
+	{
+		if (!Configuration.contains(Simulator.PAR_SIM_HEAP))
+			return new BigHeap();
+		Class<?> heapClass = Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP));
+		return (EventQueue) heapClass.getDeclaredConstructor().newInstance();
+	}
+
+	public long pendingEvents()
+	{
+		long res = controlQueue.size();
+		for (Partition p : parts)
+			res += p.pending();
+		return res;
+	}
+
+
+
+	@Override
+	public void blockingInitializerStart()
+	{
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+
+
+
+	@Override
+	public void blockingInitializerDone()
+	{
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+}
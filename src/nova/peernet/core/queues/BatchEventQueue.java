@@ -0,0 +1,95 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Events;
+
+/**
+ * An event queue that can return batches of events larger than the
+ * capacity given at construction: the array of the returned Events object
+ * grows as needed, up to the requested number of events. Batches of events
+ * can also be inserted at once, with addAll, and copied out with copyTo.
+ *
+ * As with removeMany, a singleton instance of the Events class is returned
+ * (possibly a new one after a growth), so the data contained in the
+ * returned object are overwritten by the next invocation.
+ */
+public interface BatchEventQueue extends EventQueue {
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * The field size of the returned object contains
+     * the number of events removed from the queue.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the queue
+     */
+    Events removeUpTo( long maxTime, int maxCount );
+
+
+    /**
+     * Removes the events that removeMany() would return (the events with
+     * the minimum time, for most queues), at most maxCount of them,
+     * regardless of the capacity given at construction.
+     *
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the queue
+     */
+    default Events removeMany( int maxCount ) {
+        return this.removeUpTo(this.getNextTime(), maxCount);
+    }
+
+
+    /**
+     * Inserts all the events of the buffer into the queue
+     * and empties the buffer.
+     * Events with the same time are inserted in the order in which they
+     * were appended to the buffer (as if add were called for each one),
+     * unless the queue documents otherwise.
+     *
+     * @param events: the events to insert.
+     */
+    default void addAll( EventBuffer events ) {
+        events.drainTo(this);
+    }
+
+
+    /**
+     * Hands all the events of the queue to the sink, in no particular
+     * order, and leaves the queue unchanged (e.g. to save its contents in
+     * a checkpoint, which addAll restores in bulk).
+     * The default implementation removes all the events into a buffer,
+     * hands them to the sink and inserts them again, so it holds at most
+     * Slice.MAX_CAPACITY events; queues that can read their memory
+     * directly hand it to the sink instead, without copying it.
+     *
+     * @param events: the sink that receives the events.
+     */
+    default void copyTo( EventSink events ) throws IOException {
+        EventBuffer all = new EventBuffer();
+        for ( Event ev = this.removeFirst(); ev != null; ev = this.removeFirst() )
+            all.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+        try {
+            all.slice().copyTo(0, events);
+        } finally {
+            this.addAll(all);
+        }
+    }
+
+
+    /**
+     * Allocates, ahead of time, the memory to hold the specified number of
+     * events, so that the queue does not grow until it holds more events.
+     * This is only a hint: the default implementation does nothing, and
+     * the memory of a queue that drains may be released again.
+     *
+     * @param capacity: the number of events expected in the queue.
+     */
+    default void reserve( long capacity ) {
+    }
+
+}
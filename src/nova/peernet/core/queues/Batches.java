@@ -0,0 +1,31 @@
+package nova.peernet.core.queues;
+
+import peernet.core.Events;
+
+// Support for the queues that implement BatchEventQueue.
+final class Batches {
+
+    // Largest capacity of an array of events.
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    // The growth factor of the arrays of events.
+    private static final int GROWTH_FACTOR = 2;
+
+
+    private Batches( ) {
+    }
+
+
+    // Returns an Events object with room for more than used events
+    // (but not for more than maxCount), whose first used events are
+    // those of evs.
+    //
+    // Pre: used == evs.array.length && used < maxCount
+    static Events grow( Events evs, int used, int maxCount ) {
+        long cap = Math.max(1L, (long) GROWTH_FACTOR * used);
+        Events res = new Events((int) Math.min(cap, Math.min(maxCount, MAX_CAPACITY)));
+        System.arraycopy(evs.array, 0, res.array, 0, used);
+        return res;
+    }
+
+}
@@ -0,0 +1,457 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import peernet.core.Event;
+import peernet.core.Events;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A calendar queue (R. Brown, 1988): events are hashed by time into an array
+ * of buckets (the days of a year), each bucket being a sorted list. Removing
+ * the first event scans the buckets from the current day on, so hold
+ * operations cost O(1) amortized when the bucket width matches the typical
+ * separation between events. The number of buckets doubles or halves with
+ * the number of events, and the width is re-estimated from the earliest
+ * events on every resize.
+ *
+ * Events are stored in slices and chained through a link column, so the
+ * queue holds more than Integer.MAX_VALUE events and resizing relinks the
+ * entries without copying them.
+ */
+public class CalendarQueue implements BatchEventQueue {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Minimum number of buckets.
+    private static final int MIN_BUCKETS = 16;
+
+    // Maximum number of buckets: 2^30
+    private static final int MAX_BUCKETS = 1073741824;
+
+    // Number of events used to estimate the bucket width.
+    private static final int SAMPLE_SIZE = 25;
+
+    // Maximum capacity of the queue: 2^60
+    public static final long MAX_CAPACITY = LinkedSlices.MAX_CAPACITY;
+
+    // Default capacity of the array with the events with minimum time.
+    public static final int DEF_ARR_CAP = 1024;
+
+    private static final long NIL = LinkedSlices.NIL;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Memory of the queue.
+    private LinkedSlices mem;
+
+    // First and last entries of each bucket.
+    private long[] heads;
+    private long[] tails;
+
+    // Number of buckets minus one (the number of buckets is a power of 2).
+    private int mask;
+
+    // Time span of a bucket.
+    private long width;
+
+    // Index of the bucket (time / width) where the search for the minimum
+    // starts. No event has a smaller bucket index.
+    private long current;
+
+    // Number of events in the queue.
+    private long size;
+
+    // Sizes at which the number of buckets is doubled or halved.
+    private long growAt;
+    private long shrinkAt;
+
+    // The object used to return the events with minimum time.
+    private Events minA;
+
+    // The object used to return an event with minimum time.
+    private Event minE;
+
+    // Entries removed to estimate the bucket width.
+    private long[] sample;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates an empty calendar queue
+     * which returns an array with the default capacity (DEF_ARR_CAP)
+     * when the method removeMany is called.
+     */
+    public CalendarQueue( ) {
+        this(DEF_ARR_CAP);
+    }
+
+    /**
+     * Creates an empty calendar queue
+     * which returns an array with the specified capacity
+     * when the method removeMany is called.
+     *
+     * @param capacity: the capacity of the array in the Events object
+     *                  returned by the method removeMany.
+     */
+    public CalendarQueue( int capacity ) {
+        mem = new LinkedSlices();
+        size = 0L;
+        current = 0L;
+        width = 1L;
+        this.setBuckets(MIN_BUCKETS);
+        minA = new Events(capacity);
+        minE = new Event();
+        sample = new long[SAMPLE_SIZE];
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the queue contains no events.
+     */
+    public boolean isEmpty( ) {
+        return size == 0L;
+    }
+
+
+    /**
+     * Returns true iff the queue cannot contain more events.
+     */
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    /**
+     * Returns the number of events in the queue.
+     */
+    public long size( ) {
+        return size;
+    }
+
+
+    /**
+     * Returns the minimum time of the events in the queue.
+     * If there are no events in the queue, returns Long.MAX_VALUE.
+     *
+     * @return the smallest time of an event in the queue
+     *         or Long.MAX_VALUE (if the size is zero).
+     */
+    public long getNextTime( ) {
+        if ( this.isEmpty() )
+            return Long.MAX_VALUE;
+
+        return mem.getKey(heads[this.locate()]);
+    }
+
+
+    /**
+     * Inserts the specified event into the queue.
+     * Events with the same time are removed in insertion order.
+     * If the queue cannot contain one more event,
+     * a runtime exception is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( this.isFull() )
+            throw new RuntimeException("Calendar queue is full.");
+
+        this.insert(mem.allocate(time, src, node, pid, event), time);
+        size++;
+        if ( size > growAt )
+            this.resize(2 * (mask + 1));
+    }
+
+
+    /**
+     * Removes an event with the minimum time from the queue
+     * and returns that event.
+     * Notice that a singleton instance of the Event class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * If there are no events in the queue, returns null.
+     *
+     * @return an event in the queue
+     *         or null (if the size is zero).
+     */
+    public Event removeFirst( ) {
+        if ( this.isEmpty() )
+            return null;
+
+        this.remove(this.locate(), minE);
+        if ( size < shrinkAt )
+            this.resize((mask + 1) / 2);
+        return minE;
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the queue
+     * and returns those events.
+     * Notice that a singleton instance of the Events class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * The field size of the returned object contains
+     * the number of events removed from the queue. That number is:
+     *   zero, if there are no events in the queue;
+     *   the length of the array, if there are more events with the minimum
+     *       time than the capacity of the array.
+     *
+     * @return some events in the queue
+     */
+    public Events removeMany( ) {
+        Event[] arr = minA.array;
+        int max = (int) Math.min(arr.length, size);
+        if ( max == 0 )
+            minA.size = 0;
+        else {
+            // Events with the same time are adjacent in the same bucket.
+            int b = this.locate();
+            long minK = mem.getKey(heads[b]);
+            int c = 0;
+            do
+                {
+                    this.remove(b, arr[c]);
+                    c++;
+                }
+            while ( c < max && heads[b] != NIL && mem.getKey(heads[b]) == minK );
+            minA.size = c;
+            if ( size < shrinkAt )
+                this.resize((mask + 1) / 2);
+        }
+        return minA;
+    }
+
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max ) {
+            int b = this.locate();
+            if ( mem.getKey(heads[b]) > maxTime )
+                break;
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.remove(b, minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        if ( size < shrinkAt )
+            this.resize((mask + 1) / 2);
+        return minA;
+    }
+
+
+    /**
+     * Hands all the events of the queue to the sink, bucket by bucket
+     * (not in time order), and leaves the queue unchanged.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public void copyTo( EventSink events ) throws IOException {
+        Event ev = new Event();
+        for ( int b = 0; b <= mask; b++ )
+            for ( long idx = heads[b]; idx != NIL; idx = mem.getNext(idx) ) {
+                mem.getEntry(idx, ev);
+                events.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+            }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Returns the bucket whose first entry has the minimum time,
+    // advancing current up to the bucket index of that entry.
+    //
+    // Pre: !this.isEmpty()
+    private int locate( ) {
+        long day = current;
+        for ( int i = 0; i <= mask; i++, day++ ) {
+            int b = (int) (day & mask);
+            long h = heads[b];
+            if ( h != NIL && mem.getKey(h) / width <= day ) {
+                current = day;
+                return b;
+            }
+        }
+        // No event in the next year: direct search.
+        int minB = -1;
+        long minK = Long.MAX_VALUE;
+        for ( int b = 0; b <= mask; b++ ) {
+            long h = heads[b];
+            if ( h != NIL && ( minB < 0 || mem.getKey(h) < minK ) ) {
+                minB = b;
+                minK = mem.getKey(h);
+            }
+        }
+        current = minK / width;
+        return minB;
+    }
+
+
+    // Removes the first entry of bucket b and returns it in parameter res.
+    //
+    // Pre: heads[b] != NIL
+    private void remove( int b, Event res ) {
+        long idx = this.unlink(b);
+        mem.getEntry(idx, res);
+        mem.release(idx);
+        size--;
+    }
+
+
+    // Detaches the first entry of bucket b and returns its index.
+    //
+    // Pre: heads[b] != NIL
+    private long unlink( int b ) {
+        long idx = heads[b];
+        long next = mem.getNext(idx);
+        heads[b] = next;
+        if ( next == NIL )
+            tails[b] = NIL;
+        return idx;
+    }
+
+
+    // Links the entry idx, with the specified time, into its bucket,
+    // after the entries with smaller or equal time.
+    private void insert( long idx, long time ) {
+        long day = time / width;
+        if ( day < current )
+            current = day;
+        int b = (int) (day & mask);
+        long tail = tails[b];
+        if ( tail == NIL ) {
+            heads[b] = idx;
+            tails[b] = idx;
+        }
+        else if ( mem.getKey(tail) <= time ) {
+            mem.setNext(tail, idx);
+            tails[b] = idx;
+        }
+        else if ( time < mem.getKey(heads[b]) ) {
+            mem.setNext(idx, heads[b]);
+            heads[b] = idx;
+        }
+        else {
+            long prev = heads[b];
+            long next = mem.getNext(prev);
+            while ( mem.getKey(next) <= time ) {
+                prev = next;
+                next = mem.getNext(prev);
+            }
+            mem.setNext(idx, next);
+            mem.setNext(prev, idx);
+        }
+    }
+
+
+    // Allocates n empty buckets and updates the resize thresholds.
+    private void setBuckets( int n ) {
+        heads = new long[n];
+        tails = new long[n];
+        Arrays.fill(heads, NIL);
+        Arrays.fill(tails, NIL);
+        mask = n - 1;
+        growAt = n < MAX_BUCKETS ? 2L * n : Long.MAX_VALUE;
+        shrinkAt = n > MIN_BUCKETS ? n / 2 : -1L;
+    }
+
+
+    // Rebuilds the calendar with n buckets and a width estimated from the
+    // separation between the earliest events.
+    private void resize( int n ) {
+        n = Math.max(MIN_BUCKETS, Math.min(MAX_BUCKETS, n));
+        if ( n == mask + 1 || size == 0L ) {
+            this.setBuckets(n);
+            return;
+        }
+
+        // Detach the earliest events, in order.
+        int k = (int) Math.min(SAMPLE_SIZE, size);
+        for ( int i = 0; i < k; i++ )
+            sample[i] = this.unlink(this.locate());
+        long newWidth = this.estimateWidth(k);
+
+        long[] oldHeads = heads;
+        int oldBuckets = mask + 1;
+        width = newWidth;
+        current = mem.getKey(sample[0]) / width;
+        this.setBuckets(n);
+        // The sample goes back first: it holds the earliest events, which
+        // precede the remaining events with the same time.
+        for ( int i = 0; i < k; i++ ) {
+            mem.setNext(sample[i], NIL);
+            this.insert(sample[i], mem.getKey(sample[i]));
+        }
+        for ( int b = 0; b < oldBuckets; b++ ) {
+            long idx = oldHeads[b];
+            while ( idx != NIL ) {
+                long next = mem.getNext(idx);
+                mem.setNext(idx, NIL);
+                this.insert(idx, mem.getKey(idx));
+                idx = next;
+            }
+        }
+    }
+
+
+    // Returns three times the average separation of the first k sampled
+    // events, ignoring separations larger than twice the overall average.
+    private long estimateWidth( int k ) {
+        if ( k < 2 )
+            return width;
+        double total = 0.0;
+        for ( int i = 1; i < k; i++ )
+            total += mem.getKey(sample[i]) - mem.getKey(sample[i - 1]);
+        double avg = total / (k - 1);
+        double sum = 0.0;
+        int count = 0;
+        for ( int i = 1; i < k; i++ ) {
+            double sep = mem.getKey(sample[i]) - mem.getKey(sample[i - 1]);
+            if ( sep <= 2.0 * avg ) {
+                sum += sep;
+                count++;
+            }
+        }
+        double w = 3.0 * sum / count;
+        if ( w < 1.0 )
+            return 1L;
+        return (long) Math.min(w, (double) (Long.MAX_VALUE / 4));
+    }
+
+}
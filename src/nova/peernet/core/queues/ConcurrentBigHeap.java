@@ -1,10 +1,9 @@
 package nova.peernet.core.queues;
 
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.Random;
 
 import peernet.core.Event;
-import peernet.core.EventQueue;
 import peernet.core.Events;
 import peernet.core.Node;
 import peernet.transport.Address;
@@ -14,7 +13,7 @@ import peernet.transport.Address;
  */
 
 
-public class ConcurrentBigHeap implements EventQueue {
+public class ConcurrentBigHeap implements BatchEventQueue {
 
     // -----------------------------------------------------------------------
     // Constants
@@ -49,6 +48,9 @@ public class ConcurrentBigHeap implements EventQueue {
     // Number of events in the heap.
     private long size;
 
+    // Number of insertions and removals, to sample them (see JfrQueueSample).
+    private long ops;
+
     // The object used to return the events with minimum time.
     private Events minA;
 
@@ -58,6 +60,9 @@ public class ConcurrentBigHeap implements EventQueue {
     // The event used to communicate with the slices.
     private Event last;
 
+    // True iff the primitive columns of the slices are kept off-heap.
+    private final boolean offHeap;
+
 
     // -----------------------------------------------------------------------
     // Constructors
@@ -81,6 +86,33 @@ public class ConcurrentBigHeap implements EventQueue {
      *                  returned by the method removeMany.
      */
     public ConcurrentBigHeap( int capacity ) {
+        this(capacity, false);
+    }
+
+    /** 
+     * Creates a heap (with the default initial capacity) 
+     * which returns an array with the default capacity (DEF_ARR_CAP)
+     * when the method removeMany is called.
+     *
+     * @param offHeap: if true, the times and pids of the events are stored
+     *                 outside the Java heap (see OffHeapSlice).
+     */
+    public ConcurrentBigHeap( boolean offHeap ) {
+        this(DEF_ARR_CAP, offHeap);
+    }
+
+    /** 
+     * Creates a heap (with the default initial capacity) 
+     * which returns an array with the specified capacity
+     * when the method removeMany is called.
+     *
+     * @param capacity: the capacity of the array in the Events object
+     *                  returned by the method removeMany.
+     * @param offHeap:  if true, the times and pids of the events are stored
+     *                  outside the Java heap (see OffHeapSlice).
+     */
+    public ConcurrentBigHeap( int capacity, boolean offHeap ) {
+        this.offHeap = offHeap;
         vec = new Slice[DEF_VEC_CAP];
         vecSize = 0;
         size = 0L;
@@ -152,6 +184,7 @@ public class ConcurrentBigHeap implements EventQueue {
         if ( this.isFull() )
             throw new RuntimeException("Heap is full."); 
 
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
         if ( vecSize == 0 || vec[vecSize - 1].isFull() )
             this.addSlice();
              
@@ -176,6 +209,59 @@ public class ConcurrentBigHeap implements EventQueue {
         if ( hole < size )
             hSlc.setEntry(hPos, time, src, node, pid, event);
         size++;
+        JfrQueueSample.finish(sample, this, "add", size);
+    }
+
+
+    /**
+     * Inserts all the events of the buffer into the heap
+     * and empties the buffer.
+     * If the buffer holds fewer events than the heap, they are inserted
+     * one by one. Otherwise, they are appended to the slices and the heap
+     * order is restored bottom-up (Floyd's method) in linear time
+     * (see SliceHeaps.heapify).
+     * If the heap cannot contain all the events,
+     * a runtime exception is raised (and no event is inserted).
+     *
+     * @param events: the events to insert.
+     */
+    public synchronized void addAll( EventBuffer events ) {
+        int n = events.size();
+        if ( n > MAX_CAPACITY - size )
+            throw new RuntimeException("Heap is full.");
+
+        if ( n < size ) {
+            events.drainTo(this);
+            return;
+        }
+        vec = SliceHeaps.append(vec, size, events.slice(), n, offHeap);
+        size += n;
+        vecSize = SliceHeaps.slices(size);
+        events.clear();
+        SliceHeaps.heapify(vec, size);
+    }
+
+
+    /**
+     * Hands all the events of the heap to the sink, in heap order
+     * (not time order), reading the slices directly,
+     * and leaves the heap unchanged.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public synchronized void copyTo( EventSink events ) throws IOException {
+        SliceHeaps.copyTo(vec, size, events);
+    }
+
+
+    /**
+     * Allocates the memory to hold the specified number of events, so
+     * that the heap does not grow until it holds more events.
+     *
+     * @param capacity: the number of events expected in the heap.
+     */
+    public synchronized void reserve( long capacity ) {
+        vec = SliceHeaps.reserve(vec, Math.min(capacity, MAX_CAPACITY), offHeap);
     }
 
 
@@ -234,6 +320,44 @@ public class ConcurrentBigHeap implements EventQueue {
     }
 
 
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public synchronized Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max && this.getNextTime() <= maxTime ) {
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.remove(minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        return minA;
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the heap,
+     * at most maxCount of them, and returns those events.
+     *
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public synchronized Events removeMany( int maxCount ) {
+        return this.removeUpTo(this.getNextTime(), maxCount);
+    }
+
+
     // ------------------------------------------------------------------------
     // Private methods
     // ------------------------------------------------------------------------
@@ -243,6 +367,7 @@ public class ConcurrentBigHeap implements EventQueue {
     //
     // Pre: !this.isEmpty()
     private void remove( Event res ) {
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
         vec[0].getEntry(0, res);
         vec[vecSize - 1].removeLast(last);
         if ( vec[vecSize - 1].isEmpty() )
@@ -252,6 +377,7 @@ public class ConcurrentBigHeap implements EventQueue {
             vec[0].setEntry(0, last);
         else
             this.percolateDown();  
+        JfrQueueSample.finish(sample, this, "remove", size);
     }
 
 
@@ -310,7 +436,7 @@ public class ConcurrentBigHeap implements EventQueue {
             vec = newVec;
         }
         if ( vec[vecSize] == null )
-            vec[vecSize] = new Slice();
+            vec[vecSize] = offHeap ? new OffHeapSlice() : new HeapSlice();
         vecSize++;
     }
 }
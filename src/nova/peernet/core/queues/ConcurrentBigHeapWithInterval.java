@@ -1,20 +1,30 @@
 package nova.peernet.core.queues;
 
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.Random;
 
 import peernet.core.Event;
-import peernet.core.EventQueue;
 import peernet.core.Events;
 import peernet.core.Node;
 import peernet.transport.Address;
 
 /**
+ * A heap whose removeMany returns the events with time within an interval
+ * from the minimum time (DEF_NO_TIME_INTERFERENCE by default), which are
+ * assumed not to interfere with each other.
+ *
+ * With setAdaptive, the width of the interval is tuned after every
+ * removeMany towards a target batch size, never above the width set
+ * (the correctness bound): it doubles while the batches are below half the
+ * target, and halves while they are above four times the target (and not
+ * cut by the maximum count). Every change is logged to the standard error
+ * with the time and size of the batch that caused it.
+ *
  * @author Margarida Mamede
  */
 
 
-public class ConcurrentBigHeapWithInterval implements EventQueue {
+public class ConcurrentBigHeapWithInterval implements BatchEventQueue {
 
     // -----------------------------------------------------------------------
     // Constants
@@ -35,9 +45,16 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
 
     // Default capacity of the array with the events with minimum time.
     public static final int DEF_ARR_CAP = 1024;
+
     // Time window used to return multiple events together.
     public static final int DEF_NO_TIME_INTERFERENCE = 50;
 
+    // When tuned, the interval grows while the batches are below the target
+    // divided by TUNE_LOW, and shrinks while they are above the target
+    // times TUNE_HIGH.
+    private static final int TUNE_LOW = 2;
+    private static final int TUNE_HIGH = 4;
+
     // -----------------------------------------------------------------------
     // Instance variables
     // -----------------------------------------------------------------------
@@ -51,6 +68,18 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
     // Number of events in the heap.
     private long size;
 
+    // Number of insertions and removals, to sample them (see JfrQueueSample).
+    private long ops;
+
+    // Width of the interval returned by removeMany.
+    private long width;
+
+    // Largest width of the interval, and target size of the batches,
+    // when the width is tuned (adaptive is true).
+    private long maxWidth;
+    private int targetBatch;
+    private boolean adaptive;
+
     // The object used to return the events with minimum time.
     private Events minA;
 
@@ -89,6 +118,9 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
         minA = new Events(capacity);
         minE = new Event();
         last = new Event();
+        width = DEF_NO_TIME_INTERFERENCE;
+        maxWidth = width;
+        adaptive = false;
     }
 
 
@@ -99,6 +131,43 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
     // Public methods
     // ------------------------------------------------------------------------
 
+    /**
+     * Sets the width of the interval returned by removeMany, which is also
+     * the largest width when it is tuned.
+     *
+     * @param width: the largest difference between the times of the events
+     *               of a batch (0 for a single time).
+     */
+    public synchronized void setWidth( long width ) {
+        if ( width < 0 )
+            throw new IllegalArgumentException("Negative interval width: " + width);
+        this.width = width;
+        this.maxWidth = width;
+    }
+
+
+    /**
+     * Tunes the width of the interval, between 0 and the width set,
+     * so that removeMany returns about targetBatch events.
+     *
+     * @param targetBatch: the target number of events of a batch.
+     */
+    public synchronized void setAdaptive( int targetBatch ) {
+        if ( targetBatch < 1 )
+            throw new IllegalArgumentException("Invalid target batch size: " + targetBatch);
+        this.targetBatch = targetBatch;
+        this.adaptive = true;
+    }
+
+
+    /**
+     * Returns the current width of the interval returned by removeMany.
+     */
+    public synchronized long getWidth( ) {
+        return width;
+    }
+
+
     /** 
      * Returns true iff the heap contains no events.
      */
@@ -154,6 +223,7 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
         if ( this.isFull() )
             throw new RuntimeException("Heap is full."); 
 
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
         if ( vecSize == 0 || vec[vecSize - 1].isFull() )
             this.addSlice();
              
@@ -178,6 +248,59 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
         if ( hole < size )
             hSlc.setEntry(hPos, time, src, node, pid, event);
         size++;
+        JfrQueueSample.finish(sample, this, "add", size);
+    }
+
+
+    /**
+     * Inserts all the events of the buffer into the heap
+     * and empties the buffer.
+     * If the buffer holds fewer events than the heap, they are inserted
+     * one by one. Otherwise, they are appended to the slices and the heap
+     * order is restored bottom-up (Floyd's method) in linear time
+     * (see SliceHeaps.heapify).
+     * If the heap cannot contain all the events,
+     * a runtime exception is raised (and no event is inserted).
+     *
+     * @param events: the events to insert.
+     */
+    public synchronized void addAll( EventBuffer events ) {
+        int n = events.size();
+        if ( n > MAX_CAPACITY - size )
+            throw new RuntimeException("Heap is full.");
+
+        if ( n < size ) {
+            events.drainTo(this);
+            return;
+        }
+        vec = SliceHeaps.append(vec, size, events.slice(), n, false);
+        size += n;
+        vecSize = SliceHeaps.slices(size);
+        events.clear();
+        SliceHeaps.heapify(vec, size);
+    }
+
+
+    /**
+     * Hands all the events of the heap to the sink, in heap order
+     * (not time order), reading the slices directly,
+     * and leaves the heap unchanged.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public synchronized void copyTo( EventSink events ) throws IOException {
+        SliceHeaps.copyTo(vec, size, events);
+    }
+
+
+    /**
+     * Allocates the memory to hold the specified number of events, so
+     * that the heap does not grow until it holds more events.
+     *
+     * @param capacity: the number of events expected in the heap.
+     */
+    public synchronized void reserve( long capacity ) {
+        vec = SliceHeaps.reserve(vec, Math.min(capacity, MAX_CAPACITY), false);
     }
 
 
@@ -222,7 +345,8 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
             minA.size = 0;
         else {
             Slice slc = vec[0];
-            long minK = slc.getKey(0) + DEF_NO_TIME_INTERFERENCE;
+            long minT = slc.getKey(0);
+            long minK = this.intervalEnd(minT);
             int c = 0;
             do  
                 {
@@ -231,20 +355,92 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
                 }
             while ( c < max && slc.getKey(0) <= minK );
             minA.size = c;
+            this.tune(minT, c, c == arr.length);
         }
         return minA;        
     }
 
 
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public synchronized Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max && this.getNextTime() <= maxTime ) {
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.remove(minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        return minA;
+    }
+
+
+    /**
+     * Removes the events that removeMany() would return: those with time
+     * not greater than the minimum time plus the width of the interval,
+     * at most maxCount of them.
+     *
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public synchronized Events removeMany( int maxCount ) {
+        if ( this.isEmpty() )
+            return this.removeUpTo(Long.MIN_VALUE, maxCount);
+
+        long minT = this.getNextTime();
+        Events evs = this.removeUpTo(this.intervalEnd(minT), maxCount);
+        this.tune(minT, evs.size, evs.size == maxCount);
+        return evs;
+    }
+
+
     // ------------------------------------------------------------------------
     // Private methods
     // ------------------------------------------------------------------------
 
+    // Returns the largest time of the interval that starts at time.
+    private long intervalEnd( long time ) {
+        return time > Long.MAX_VALUE - width ? Long.MAX_VALUE : time + width;
+    }
+
+
+    // Tunes the width after a batch of the specified number of events,
+    // starting at time minT; full is true if the batch was cut by the
+    // maximum count.
+    private void tune( long minT, int batch, boolean full ) {
+        if ( !adaptive )
+            return;
+
+        long w = width;
+        if ( (long) batch * TUNE_LOW < targetBatch && width < maxWidth )
+            w = Math.min(maxWidth, Math.max(1L, 2 * width));
+        else if ( batch > (long) TUNE_HIGH * targetBatch && !full && width > 0 )
+            w = width / 2;
+        if ( w != width ) {
+            System.err.println("ConcurrentBigHeapWithInterval: interval width " + width + " -> " + w
+                + " at time " + minT + " (batch of " + batch + " events, target " + targetBatch + ")");
+            width = w;
+        }
+    }
+
     // Removes an event with the smallest time from the heap
     // and returns that event in the parameter res.
     //
     // Pre: !this.isEmpty()
     private void remove( Event res ) {
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
         vec[0].getEntry(0, res);
         vec[vecSize - 1].removeLast(last);
         if ( vec[vecSize - 1].isEmpty() )
@@ -254,6 +450,7 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
             vec[0].setEntry(0, last);
         else
             this.percolateDown();  
+        JfrQueueSample.finish(sample, this, "remove", size);
     }
 
 
@@ -312,7 +509,7 @@ public class ConcurrentBigHeapWithInterval implements EventQueue {
             vec = newVec;
         }
         if ( vec[vecSize] == null )
-            vec[vecSize] = new Slice();
+            vec[vecSize] = new HeapSlice();
         vecSize++;
     }
 }
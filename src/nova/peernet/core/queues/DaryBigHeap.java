@@ -0,0 +1,402 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+
+import peernet.core.Event;
+import peernet.core.Events;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A d-ary variant of BigHeap, for a power-of-two arity d (4 or 8 are the
+ * sensible choices). The heap is shallower than a binary one, and the tree
+ * is shifted by d - 1 positions so that the d children of a node start at a
+ * multiple of d: with d = 8 the keys of all children of a node lie in the
+ * same 64-byte block of the times array, and the search for the smallest
+ * child costs a single cache miss.
+ *
+ * The slices are pages with a fixed power-of-two capacity, so positions are
+ * mapped to (page, offset) with shifts and masks instead of divisions.
+ * The children of a node never cross a page boundary.
+ */
+public class DaryBigHeap implements BatchEventQueue {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Default arity of the heap.
+    public static final int DEF_ARITY = 8;
+
+    // Capacity of a page: 2^20
+    private static final int PAGE_SHIFT = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Default capacity of the extendable array.
+    private static final int DEF_VEC_CAP = 16;
+
+    // Maximum capacity of the extendable array: 2^30
+    private static final int MAX_VEC_CAP = 1073741824;
+
+    // The growth factor of the extendable array.
+    private static final int GROWTH_FACTOR = 2;
+
+    // Maximum capacity of the heap: 2^50 (minus the padding).
+    public static final long MAX_CAPACITY =
+        ((long) MAX_VEC_CAP) * PAGE_SIZE - 16;
+
+    // Default capacity of the array with the events with minimum time.
+    public static final int DEF_ARR_CAP = 1024;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // log2 of the arity.
+    private final int shift;
+
+    // Position of the root (arity - 1); positions below it are padding.
+    private final int root;
+
+    // Memory of the heap: an extendable array of pages.
+    private Slice[] vec;
+
+    // Number of pages in the array.
+    private int vecSize;
+
+    // Number of events in the heap.
+    private long size;
+
+    // Number of insertions and removals, to sample them (see JfrQueueSample).
+    private long ops;
+
+    // The object used to return the events with minimum time.
+    private Events minA;
+
+    // The object used to return an event with minimum time.
+    private Event minE;
+
+    // The event used to communicate with the pages.
+    private Event last;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates a heap with the default arity (DEF_ARITY)
+     * which returns an array with the default capacity (DEF_ARR_CAP)
+     * when the method removeMany is called.
+     */
+    public DaryBigHeap( ) {
+        this(DEF_ARITY, DEF_ARR_CAP);
+    }
+
+    /**
+     * Creates a heap with the specified arity
+     * which returns an array with the specified capacity
+     * when the method removeMany is called.
+     *
+     * @param arity:    the number of children of each node
+     *                  (a power of two between 2 and 16).
+     * @param capacity: the capacity of the array in the Events object
+     *                  returned by the method removeMany.
+     */
+    public DaryBigHeap( int arity, int capacity ) {
+        if ( arity < 2 || arity > 16 || Integer.bitCount(arity) != 1 )
+            throw new IllegalArgumentException("Arity must be a power of two between 2 and 16: " + arity);
+        shift = Integer.numberOfTrailingZeros(arity);
+        root = arity - 1;
+        vec = new Slice[DEF_VEC_CAP];
+        vecSize = 0;
+        size = 0L;
+        minA = new Events(capacity);
+        minE = new Event();
+        last = new Event();
+        this.addSlice();
+        for ( int i = 0; i < root; i++ )
+            vec[0].addLast(Long.MIN_VALUE, null, null, (byte) 0, null);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the heap contains no events.
+     */
+    public boolean isEmpty( ) {
+        return size == 0L;
+    }
+
+
+    /**
+     * Returns true iff the heap cannot contain more events.
+     */
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    /**
+     * Returns the number of events in the heap.
+     */
+    public long size( ) {
+        return size;
+    }
+
+
+    /**
+     * Returns the minimum time of the events in the heap.
+     * If there are no events in the heap, returns Long.MAX_VALUE.
+     *
+     * @return the smallest time of an event in the heap
+     *         or Long.MAX_VALUE (if the size is zero).
+     */
+    public long getNextTime( ) {
+        if ( this.isEmpty() )
+            return Long.MAX_VALUE;
+
+        return vec[0].getKey(root);
+    }
+
+
+    /**
+     * Inserts the specified event into the heap.
+     * If the heap cannot contain one more event,
+     * a runtime exception is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( this.isFull() )
+            throw new RuntimeException("Heap is full.");
+
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
+        long hole = root + size;
+        if ( vec[vecSize - 1].size() == PAGE_SIZE )
+            this.addSlice();
+
+        Slice hSlc = vec[vecSize - 1];
+        int hPos = (int) (hole & PAGE_MASK);
+        hSlc.addLast(time, src, node, pid, event);
+        // Percolate up.
+        while ( hole > root ) {
+            long parent = (hole >>> shift) + root - 1;
+            Slice pSlc = vec[(int) (parent >>> PAGE_SHIFT)];
+            int pPos = (int) (parent & PAGE_MASK);
+            if ( time < pSlc.getKey(pPos) ) {
+                hSlc.copyEntry(pSlc, pPos, hPos);
+                hole = parent;
+                hSlc = pSlc;
+                hPos = pPos;
+            }
+            else
+                break;
+        }
+        if ( hole < root + size )
+            hSlc.setEntry(hPos, time, src, node, pid, event);
+        size++;
+        JfrQueueSample.finish(sample, this, "add", size);
+    }
+
+
+    /**
+     * Hands all the events of the heap to the sink, in heap order
+     * (not time order), reading the slices directly (without the padding
+     * before the root), and leaves the heap unchanged.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public void copyTo( EventSink events ) throws IOException {
+        for ( int i = 0; i < vecSize; i++ )
+            vec[i].copyTo(i == 0 ? root : 0, events);
+    }
+
+
+    /**
+     * Allocates the memory to hold the specified number of events, so
+     * that the heap does not grow until it holds more events.
+     *
+     * @param capacity: the number of events expected in the heap.
+     */
+    public void reserve( long capacity ) {
+        long positions = root + Math.min(capacity, MAX_CAPACITY);
+        for ( int i = 0; (long) i << PAGE_SHIFT < positions; i++ ) {
+            if ( i == vec.length ) {
+                Slice[] newVec = new Slice[GROWTH_FACTOR * vec.length];
+                System.arraycopy(vec, 0, newVec, 0, vec.length);
+                vec = newVec;
+            }
+            if ( vec[i] == null )
+                vec[i] = new HeapSlice();
+            vec[i].reserve((int) Math.min(positions - ((long) i << PAGE_SHIFT), PAGE_SIZE));
+        }
+    }
+
+
+    /**
+     * Removes an event with the minimum time from the heap
+     * and returns that event.
+     * Notice that a singleton instance of the Event class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * If there are no events in the heap, returns null.
+     *
+     * @return an event in the heap
+     *         or null (if the size is zero).
+     */
+    public Event removeFirst( ) {
+        if ( this.isEmpty() )
+            return null;
+
+        this.remove(minE);
+        return minE;
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the heap
+     * and returns those events.
+     * Notice that a singleton instance of the Events class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * The field size of the returned object contains
+     * the number of events removed from the heap. That number is:
+     *   zero, if there are no events in the heap;
+     *   the length of the array, if there are more events with the minimum
+     *       time than the capacity of the array.
+     *
+     * @return some events in the heap
+     */
+    public Events removeMany( ) {
+        Event[] arr = minA.array;
+        int max = (int) Math.min(arr.length, size);
+        if ( max == 0 )
+            minA.size = 0;
+        else {
+            Slice slc = vec[0];
+            long minK = slc.getKey(root);
+            int c = 0;
+            do
+                {
+                    this.remove(arr[c]);
+                    c++;
+                }
+            while ( c < max && size > 0 && slc.getKey(root) == minK );
+            minA.size = c;
+        }
+        return minA;
+    }
+
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max && this.getNextTime() <= maxTime ) {
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.remove(minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        return minA;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Removes an event with the smallest time from the heap
+    // and returns that event in the parameter res.
+    //
+    // Pre: !this.isEmpty()
+    private void remove( Event res ) {
+        JfrQueueSample sample = JfrQueueSample.start(++ops);
+        vec[0].getEntry(root, res);
+        vec[vecSize - 1].removeLast(last);
+        if ( vecSize > 1 && vec[vecSize - 1].isEmpty() )
+            vecSize--;
+        size--;
+        if ( size > 0 )
+            this.percolateDown();
+        JfrQueueSample.finish(sample, this, "remove", size);
+    }
+
+
+    // Establishes the heap order property
+    // when it holds for all positions but the root.
+    //
+    // Pre: size > 0.
+    private void percolateDown( ) {
+        long key = last.time;
+        long end = root + size;
+        long hole = root;
+        Slice hSlc = vec[0];
+        int hPos = root;
+        long child = (hole - root + 1) << shift;    // First child.
+        while ( child < end ) {
+            // Find the smallest child; all children are in the same page.
+            Slice cSlc = vec[(int) (child >>> PAGE_SHIFT)];
+            int first = (int) (child & PAGE_MASK);
+            int stop = first + (int) Math.min(1L << shift, end - child);
+            int cPos = first;
+            long cKey = cSlc.getKey(first);
+            for ( int pos = first + 1; pos < stop; pos++ ) {
+                long k = cSlc.getKey(pos);
+                if ( k < cKey ) {
+                    cKey = k;
+                    cPos = pos;
+                }
+            }
+            // Compare the smallest child with key.
+            if ( cKey < key ) {
+                hSlc.copyEntry(cSlc, cPos, hPos);
+                hole = child + (cPos - first);
+                hSlc = cSlc;
+                hPos = cPos;
+                child = (hole - root + 1) << shift;    // First child.
+            }
+            else
+                break;
+        }
+        hSlc.setEntry(hPos, last);
+    }
+
+
+    // Pre: !this.isFull()
+    private void addSlice( ) {
+        if ( vecSize == vec.length ) {
+            int cap = GROWTH_FACTOR * vecSize;
+            Slice[] newVec = new Slice[cap];
+            System.arraycopy(vec, 0, newVec, 0, vecSize);
+            vec = newVec;
+        }
+        if ( vec[vecSize] == null )
+            vec[vecSize] = new HeapSlice();
+        vecSize++;
+    }
+
+}
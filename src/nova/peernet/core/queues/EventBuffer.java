@@ -0,0 +1,155 @@
+package nova.peernet.core.queues;
+
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * An unordered, growable buffer of events, stored in columns like the
+ * slices of the heaps. Events are appended by a single thread and later
+ * moved, in insertion order, into an event queue.
+ *
+ * The buffer is not thread-safe: it is meant to be owned by one worker
+ * while events are appended, and drained by the engine afterwards.
+ */
+public class EventBuffer implements EventSink {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Default capacity of the buffer.
+    public static final int DEF_CAPACITY = 16;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Memory of the buffer.
+    private Slice slc;
+
+    // The event used to read the buffer.
+    private Event scratch;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates an empty buffer with the default capacity (DEF_CAPACITY).
+     */
+    public EventBuffer( ) {
+        this(DEF_CAPACITY);
+    }
+
+    /**
+     * Creates an empty buffer with the specified initial capacity.
+     * The buffer grows when it is full.
+     *
+     * @param capacity: the initial capacity of the buffer.
+     */
+    public EventBuffer( int capacity ) {
+        slc = new HeapSlice(Math.max(capacity, 1));
+        scratch = new Event();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the buffer contains no events.
+     */
+    public boolean isEmpty( ) {
+        return slc.isEmpty();
+    }
+
+
+    /**
+     * Returns the number of events in the buffer.
+     */
+    public int size( ) {
+        return slc.size();
+    }
+
+
+    /**
+     * Returns true iff the buffer cannot contain more events.
+     */
+    public boolean isFull( ) {
+        return slc.isFull();
+    }
+
+
+    /**
+     * Appends the specified event to the buffer.
+     * If the buffer cannot contain one more event,
+     * a runtime exception is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    @Override
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( slc.isFull() )
+            throw new RuntimeException("Buffer is full.");
+
+        slc.addLast(time, src, node, pid, event);
+    }
+
+
+    /**
+     * Copies the event at the specified position of the buffer
+     * (in insertion order) into ev.
+     *
+     * @param pos: the position of the event, between 0 and size() - 1.
+     * @param ev:  the event that receives the data.
+     */
+    public void get( int pos, Event ev ) {
+        if ( pos < 0 || pos >= slc.size() )
+            throw new IndexOutOfBoundsException("Position " + pos + " of a buffer of size " + slc.size());
+
+        slc.getEntry(pos, ev);
+    }
+
+
+    /**
+     * Inserts all the events of the buffer into the specified queue,
+     * in the order in which they were appended, and empties the buffer.
+     *
+     * @param queue: the queue that receives the events.
+     */
+    public void drainTo( EventQueue queue ) {
+        for ( int pos = 0, n = slc.size(); pos < n; pos++ ) {
+            slc.getEntry(pos, scratch);
+            queue.add(scratch.time, scratch.src, scratch.node, scratch.pid,
+                      scratch.event);
+        }
+        slc.clear();
+        scratch.src = null;
+        scratch.node = null;
+        scratch.event = null;
+    }
+
+
+    /**
+     * Removes all the events from the buffer, keeping its capacity.
+     */
+    public void clear( ) {
+        slc.clear();
+    }
+
+
+    // Returns the slice with the events of the buffer.
+    Slice slice( ) {
+        return slc;
+    }
+}
@@ -0,0 +1,30 @@
+package nova.peernet.core.queues;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts event payloads to and from bytes, for queues that move events
+ * out of memory (see SpillingEventQueue). Nodes, addresses and Schedule
+ * payloads are not serialized: the queue keeps a table of those objects
+ * and only writes their position in the table.
+ */
+public interface EventSerializer {
+
+    /**
+     * Writes the payload of an event.
+     *
+     * @param event: the payload, which may be null
+     * @param out:   the stream to write to
+     */
+    void write( Object event, DataOutput out ) throws IOException;
+
+    /**
+     * Reads a payload written by write.
+     *
+     * @param in: the stream to read from
+     * @return the payload (or null)
+     */
+    Object read( DataInput in ) throws IOException;
+}
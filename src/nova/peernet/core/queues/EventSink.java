@@ -0,0 +1,26 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * Receives the events copied out of a queue, one at a time (see
+ * BatchEventQueue.copyTo), e.g. to write them to a file without holding
+ * a second copy of the queue in memory.
+ */
+public interface EventSink {
+
+    /**
+     * Receives an event.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    void add( long time, Address src, Node node, byte pid, Object event )
+        throws IOException;
+}
@@ -0,0 +1,319 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import peernet.core.Event;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A slice kept on the Java heap, in 5 columns (times, srcs, nodes, pids
+ * and events). The columns are split in pages of
+ * PAGE_SIZE positions, allocated on demand as the slice grows, so growing
+ * the slice never copies the events already in it; only the directories of
+ * the pages are copied, and they hold one reference per page. The first
+ * page may be shorter, for small slices (e.g. the buffers of a few events),
+ * and doubles up to PAGE_SIZE positions before the next page is allocated.
+ *
+ * As the slice drains (removeLast and clear), the pages beyond the one in
+ * use and a spare one are released to the PagePool, which keeps them for
+ * the slices that grow next, or leaves them to the garbage collector.
+ */
+class HeapSlice extends Slice {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Capacity of a page of the columns: 2^16.
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // The growth factor of the first page and of the directories.
+    private static final int GROWTH_FACTOR = 2;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Memory of the slice: 5 columns, as directories of pages.
+    private long[][] times;
+    private Address[][] srcs;
+    private Node[][] nodes;
+    private byte[][] pids;
+    private Object[][] events;
+
+    // Number of pages allocated.
+    private int pages;
+
+    // Number of positions allocated (in all the pages).
+    private int capacity;
+
+    // Number of events in the slice.
+    private int size;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    // Creates a slice with (at least) the specified capacity.
+    public HeapSlice( int capacity ) {
+        int dir = Math.max(1, (int) (((long) capacity + PAGE_MASK) >>> PAGE_SHIFT));
+        times = new long[dir][];
+        srcs = new Address[dir][];
+        nodes = new Node[dir][];
+        pids = new byte[dir][];
+        events = new Object[dir][];
+        pages = 1;
+        size = 0;
+        if ( capacity < PAGE_SIZE ) {
+            times[0] = new long[capacity];
+            srcs[0] = new Address[capacity];
+            nodes[0] = new Node[capacity];
+            pids[0] = new byte[capacity];
+            events[0] = new Object[capacity];
+            this.capacity = capacity;
+        } else {
+            pages = 0;
+            this.reserve(capacity);
+        }
+    }
+
+
+    // Creates a slice with the capacity of one page.
+    public HeapSlice( ) {
+        this(PAGE_SIZE);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public boolean isEmpty( ) { 
+        return size == 0;
+    }
+
+
+    @Override
+    public int size( ) {
+        return size;
+    }
+
+
+    @Override
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    @Override
+    public long getKey( int pos ) {
+        return times[pos >>> PAGE_SHIFT][pos & PAGE_MASK];
+    }
+
+
+    @Override
+    public void getEntry( int pos, Event ev ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        ev.time = times[p][i];
+        ev.src = srcs[p][i];
+        ev.node = nodes[p][i];
+        ev.pid = pids[p][i];
+        ev.event = events[p][i];
+    }
+
+
+    @Override
+    public void setEntry( int pos, long time, Address src, Node node, 
+                          byte pid, Object event ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        times[p][i] = time;
+        srcs[p][i] = src;
+        nodes[p][i] = node;
+        pids[p][i] = pid;
+        events[p][i] = event;
+    }
+
+
+    @Override
+    public void setEntry( int pos, Event ev ) {
+        this.setEntry(pos, ev.time, ev.src, ev.node, ev.pid, ev.event);
+    }
+
+
+    @Override
+    public void clearEntry( int pos ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        srcs[p][i] = null;
+        nodes[p][i] = null;
+        events[p][i] = null;
+    }
+
+
+    @Override
+    public void copyEntry( Slice slc, int idx, int pos ) {
+        HeapSlice o = (HeapSlice) slc;
+        int sp = idx >>> PAGE_SHIFT, si = idx & PAGE_MASK;
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        times[p][i] = o.times[sp][si];
+        srcs[p][i] = o.srcs[sp][si];
+        nodes[p][i] = o.nodes[sp][si];
+        pids[p][i] = o.pids[sp][si];
+        events[p][i] = o.events[sp][si];
+    }
+
+
+    @Override
+    public void addLast( long time, Address src, Node node, byte pid, 
+                         Object event ) {
+        if ( size == capacity )
+            this.reserve(size + 1);
+        this.setEntry(size, time, src, node, pid, event);
+        size++;
+    }
+
+
+    @Override
+    public void addRange( Slice slc, int idx, int count ) {
+        if ( size + count > capacity )
+            this.reserve(size + count);
+        if ( !(slc instanceof HeapSlice) ) {
+            Event ev = new Event();
+            for ( int end = idx + count; idx < end; idx++ ) {
+                slc.getEntry(idx, ev);
+                this.setEntry(size++, ev);
+            }
+            return;
+        }
+        // Copy a run of positions per page.
+        HeapSlice o = (HeapSlice) slc;
+        while ( count > 0 ) {
+            int sp = idx >>> PAGE_SHIFT, si = idx & PAGE_MASK;
+            int p = size >>> PAGE_SHIFT, i = size & PAGE_MASK;
+            int n = Math.min(count, Math.min(o.times[sp].length - si,
+                                             times[p].length - i));
+            System.arraycopy(o.times[sp], si, times[p], i, n);
+            System.arraycopy(o.srcs[sp], si, srcs[p], i, n);
+            System.arraycopy(o.nodes[sp], si, nodes[p], i, n);
+            System.arraycopy(o.pids[sp], si, pids[p], i, n);
+            System.arraycopy(o.events[sp], si, events[p], i, n);
+            idx += n;
+            size += n;
+            count -= n;
+        }
+    }
+
+
+    @Override
+    public void clear( ) {
+        for ( int p = 0; p < pages && p << PAGE_SHIFT < size; p++ ) {
+            int n = Math.min(size - (p << PAGE_SHIFT), srcs[p].length);
+            Arrays.fill(srcs[p], 0, n, null);
+            Arrays.fill(nodes[p], 0, n, null);
+            Arrays.fill(events[p], 0, n, null);
+        }
+        size = 0;
+        this.trim();
+    }
+
+
+    @Override
+    public void removeLast( Event ev ) {
+        size--;
+        this.getEntry(size, ev);
+        this.clearEntry(size);
+        if ( (size & PAGE_MASK) == 0 )
+            this.trim();
+    }
+
+
+    @Override
+    public void copyTo( int idx, EventSink sink ) throws IOException {
+        for ( ; idx < size; idx++ ) {
+            int p = idx >>> PAGE_SHIFT, i = idx & PAGE_MASK;
+            sink.add(times[p][i], srcs[p][i], nodes[p][i], pids[p][i],
+                     events[p][i]);
+        }
+    }
+
+
+    @Override
+    public void reserve( int minCap ) {
+        if ( minCap <= capacity )
+            return;
+        if ( pages == 1 && capacity < PAGE_SIZE )
+            this.growFirstPage(minCap);
+        while ( capacity < minCap )
+            this.addPage();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Grows the first page to hold at least minCap events, up to PAGE_SIZE.
+    // Pre: pages == 1 && capacity < PAGE_SIZE
+    private void growFirstPage( int minCap ) {
+        JfrSliceGrowth growth = JfrSliceGrowth.start();
+        int oldCap = capacity;
+        int cap = Math.min(Math.max(Math.max(GROWTH_FACTOR * capacity, minCap), 1),
+                           PAGE_SIZE);
+        times[0] = Arrays.copyOf(times[0], cap);
+        srcs[0] = Arrays.copyOf(srcs[0], cap);
+        nodes[0] = Arrays.copyOf(nodes[0], cap);
+        pids[0] = Arrays.copyOf(pids[0], cap);
+        events[0] = Arrays.copyOf(events[0], cap);
+        capacity = cap;
+        growth.finish(this, size, oldCap, cap);
+    }
+
+
+    // Appends a page, taken from the pool, to the columns.
+    // Pre: capacity == pages * PAGE_SIZE && capacity < MAX_CAPACITY
+    private void addPage( ) {
+        if ( pages == times.length ) {
+            int dir = GROWTH_FACTOR * pages;
+            times = Arrays.copyOf(times, dir);
+            srcs = Arrays.copyOf(srcs, dir);
+            nodes = Arrays.copyOf(nodes, dir);
+            pids = Arrays.copyOf(pids, dir);
+            events = Arrays.copyOf(events, dir);
+        }
+        PagePool.Page page = PagePool.acquire();
+        times[pages] = page.times;
+        srcs[pages] = page.srcs;
+        nodes[pages] = page.nodes;
+        pids[pages] = page.pids;
+        events[pages] = page.events;
+        pages++;
+        capacity += PAGE_SIZE;
+    }
+
+
+    // Releases the pages beyond the one holding the last event and a spare
+    // one (the first page is always kept).
+    // Pre: the positions from size on hold no references
+    private void trim( ) {
+        int keep = ((size + PAGE_MASK) >>> PAGE_SHIFT) + 1;
+        while ( pages > keep ) {
+            pages--;
+            PagePool.release(new PagePool.Page(times[pages], srcs[pages],
+                                               nodes[pages], pids[pages],
+                                               events[pages]));
+            times[pages] = null;
+            srcs[pages] = null;
+            nodes[pages] = null;
+            pids[pages] = null;
+            events[pages] = null;
+            capacity -= PAGE_SIZE;
+        }
+    }
+    
+}
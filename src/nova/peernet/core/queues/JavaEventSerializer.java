@@ -0,0 +1,46 @@
+package nova.peernet.core.queues;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Default EventSerializer, based on Java serialization: payloads must be
+ * Serializable. Protocols with many events should provide a dedicated
+ * serializer, as this one writes the class description of every payload.
+ */
+public class JavaEventSerializer implements EventSerializer {
+
+    public void write( Object event, DataOutput out ) throws IOException {
+        if ( event == null ) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( ObjectOutputStream oos = new ObjectOutputStream(bytes) ) {
+            oos.writeObject(event);
+        }
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+
+    public Object read( DataInput in ) throws IOException {
+        int len = in.readInt();
+        if ( len < 0 )
+            return null;
+        byte[] buf = new byte[len];
+        in.readFully(buf);
+        try ( ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf)) ) {
+            return ois.readObject();
+        } catch ( ClassNotFoundException e ) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package nova.peernet.core.queues;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JDK Flight Recorder event for one in SAMPLE_PERIOD insertions and
+ * removals of a heap, with its duration (the percolation of the event).
+ * When the event is not being recorded, the heaps only pay for a counter
+ * increment per operation.
+ */
+@Name("nova.peernet.QueueSample")
+@Label("Queue Operation")
+@Category({ "Peernet", "Event Queue" })
+@Description("A sampled insertion or removal of an event queue.")
+@StackTrace(false)
+final class JfrQueueSample extends jdk.jfr.Event {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Number of operations per sample: 2^10
+    static final long SAMPLE_PERIOD = 1024;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    @Label("Queue")
+    String queue;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Queue Size")
+    long size;
+
+
+    // ------------------------------------------------------------------------
+    // Static methods
+    // ------------------------------------------------------------------------
+
+    // Returns a started sample if operation number ops is sampled
+    // and the event is being recorded, or null.
+    static JfrQueueSample start( long ops ) {
+        if ( ops % SAMPLE_PERIOD != 0 )
+            return null;
+        JfrQueueSample sample = new JfrQueueSample();
+        if ( !sample.isEnabled() )
+            return null;
+        sample.begin();
+        return sample;
+    }
+
+
+    // Ends and commits the sample, if not null.
+    static void finish( JfrQueueSample sample, Object queue,
+                        String operation, long size ) {
+        if ( sample == null )
+            return;
+        sample.end();
+        if ( sample.shouldCommit() ) {
+            sample.queue = queue.getClass().getSimpleName();
+            sample.operation = operation;
+            sample.size = size;
+            sample.commit();
+        }
+    }
+
+}
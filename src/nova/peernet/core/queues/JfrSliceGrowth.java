@@ -0,0 +1,61 @@
+package nova.peernet.core.queues;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JDK Flight Recorder event for the growth of the columns of a slice,
+ * with its duration (the copy of the columns). Slices grow rarely, so the
+ * event is always created; it is only committed while being recorded.
+ */
+@Name("nova.peernet.SliceGrowth")
+@Label("Slice Growth")
+@Category({ "Peernet", "Event Queue" })
+@Description("The columns of a slice of an event queue were reallocated.")
+final class JfrSliceGrowth extends jdk.jfr.Event {
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    @Label("Slice")
+    String slice;
+
+    @Label("Events")
+    int events;
+
+    @Label("Old Capacity")
+    int oldCapacity;
+
+    @Label("New Capacity")
+    int newCapacity;
+
+
+    // ------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------
+
+    // Starts timing the growth of a slice.
+    static JfrSliceGrowth start( ) {
+        JfrSliceGrowth growth = new JfrSliceGrowth();
+        growth.begin();
+        return growth;
+    }
+
+
+    // Ends the growth of the slice slc, holding the specified number of
+    // events, and commits it if it is being recorded.
+    void finish( Slice slc, int events, int oldCapacity, int newCapacity ) {
+        this.end();
+        if ( this.shouldCommit() ) {
+            this.slice = slc.getClass().getSimpleName();
+            this.events = events;
+            this.oldCapacity = oldCapacity;
+            this.newCapacity = newCapacity;
+            this.commit();
+        }
+    }
+
+}
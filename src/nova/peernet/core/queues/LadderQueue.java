@@ -0,0 +1,582 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import peernet.core.Event;
+import peernet.core.Events;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A ladder queue (W. T. Tang, R. S. M. Goh and I. L.-J. Thng, 2005).
+ * Events are kept in three tiers:
+ *   Top:    an unsorted list with the far-future events;
+ *   Ladder: rungs of buckets (unsorted lists), each rung covering one bucket
+ *           of the rung above with a finer width;
+ *   Bottom: a sorted list with the events of the earliest bucket.
+ * Events are only sorted when their bucket reaches the bottom, and a bucket
+ * with too many events is spread over a new rung instead of being sorted,
+ * so skewed time distributions do not degrade into long sorted insertions.
+ * The methods removeFirst and removeMany take the events straight from the
+ * head of the bottom list.
+ *
+ * Events are stored in slices and chained through a link column, so the
+ * queue holds more than Integer.MAX_VALUE events and moving events between
+ * tiers relinks the entries without copying them.
+ */
+public class LadderQueue implements BatchEventQueue {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Maximum number of events in a bucket that is sorted into the bottom.
+    private static final int THRESHOLD = 50;
+
+    // Maximum number of rungs.
+    private static final int MAX_RUNGS = 8;
+
+    // Maximum number of buckets in a rung: 2^26
+    private static final int MAX_BUCKETS = 67108864;
+
+    // Maximum capacity of the queue: 2^60
+    public static final long MAX_CAPACITY = LinkedSlices.MAX_CAPACITY;
+
+    // Default capacity of the array with the events with minimum time.
+    public static final int DEF_ARR_CAP = 1024;
+
+    private static final long NIL = LinkedSlices.NIL;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Memory of the queue.
+    private LinkedSlices mem;
+
+    // Number of events in the queue.
+    private long size;
+
+    // Top: events with time >= topStart, unsorted.
+    private long topHead, topTail, topCount;
+    private long topMin, topMax;
+    private long topStart;
+
+    // Ladder: rung 0 is the coarsest one, rung nRungs - 1 the finest one.
+    private int nRungs;
+    private long[][] rHeads;
+    private long[][] rTails;
+    private long[] rStart;      // Start time of bucket 0.
+    private long[] rWidth;      // Time span of a bucket.
+    private int[] rCur;         // First bucket that may be non-empty.
+    private long[] rCurStart;   // Start time of bucket rCur.
+    private long[] rCount;      // Number of events in the rung.
+
+    // Bottom: events with time < rCurStart of the finest rung, sorted.
+    private long botHead, botTail, botCount;
+
+    // The object used to return the events with minimum time.
+    private Events minA;
+
+    // The object used to return an event with minimum time.
+    private Event minE;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates an empty ladder queue
+     * which returns an array with the default capacity (DEF_ARR_CAP)
+     * when the method removeMany is called.
+     */
+    public LadderQueue( ) {
+        this(DEF_ARR_CAP);
+    }
+
+    /**
+     * Creates an empty ladder queue
+     * which returns an array with the specified capacity
+     * when the method removeMany is called.
+     *
+     * @param capacity: the capacity of the array in the Events object
+     *                  returned by the method removeMany.
+     */
+    public LadderQueue( int capacity ) {
+        mem = new LinkedSlices();
+        size = 0L;
+        topHead = topTail = NIL;
+        topCount = 0L;
+        topMin = Long.MAX_VALUE;
+        topMax = Long.MIN_VALUE;
+        topStart = Long.MIN_VALUE;
+        nRungs = 0;
+        rHeads = new long[MAX_RUNGS][];
+        rTails = new long[MAX_RUNGS][];
+        rStart = new long[MAX_RUNGS];
+        rWidth = new long[MAX_RUNGS];
+        rCur = new int[MAX_RUNGS];
+        rCurStart = new long[MAX_RUNGS];
+        rCount = new long[MAX_RUNGS];
+        botHead = botTail = NIL;
+        botCount = 0L;
+        minA = new Events(capacity);
+        minE = new Event();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the queue contains no events.
+     */
+    public boolean isEmpty( ) {
+        return size == 0L;
+    }
+
+
+    /**
+     * Returns true iff the queue cannot contain more events.
+     */
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    /**
+     * Returns the number of events in the queue.
+     */
+    public long size( ) {
+        return size;
+    }
+
+
+    /**
+     * Returns the minimum time of the events in the queue.
+     * If there are no events in the queue, returns Long.MAX_VALUE.
+     *
+     * @return the smallest time of an event in the queue
+     *         or Long.MAX_VALUE (if the size is zero).
+     */
+    public long getNextTime( ) {
+        if ( this.isEmpty() )
+            return Long.MAX_VALUE;
+
+        this.fillBottom();
+        return mem.getKey(botHead);
+    }
+
+
+    /**
+     * Inserts the specified event into the queue.
+     * Events with the same time are removed in insertion order.
+     * If the queue cannot contain one more event,
+     * a runtime exception is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( this.isFull() )
+            throw new RuntimeException("Ladder queue is full.");
+
+        long idx = mem.allocate(time, src, node, pid, event);
+        size++;
+        if ( time >= topStart ) {
+            if ( topTail == NIL )
+                topHead = idx;
+            else
+                mem.setNext(topTail, idx);
+            topTail = idx;
+            topCount++;
+            if ( time < topMin )
+                topMin = time;
+            if ( time > topMax )
+                topMax = time;
+            return;
+        }
+        for ( int r = 0; r < nRungs; r++ )
+            if ( time >= rCurStart[r] ) {
+                int b = (int) ((time - rStart[r]) / rWidth[r]);
+                this.append(rHeads[r], rTails[r], b, idx);
+                rCount[r]++;
+                return;
+            }
+        this.insertBottom(idx, time);
+        if ( botCount > THRESHOLD && nRungs < MAX_RUNGS
+             && mem.getKey(botHead) != mem.getKey(botTail) )
+            this.spawnFromBottom();
+    }
+
+
+    /**
+     * Removes an event with the minimum time from the queue
+     * and returns that event.
+     * Notice that a singleton instance of the Event class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * If there are no events in the queue, returns null.
+     *
+     * @return an event in the queue
+     *         or null (if the size is zero).
+     */
+    public Event removeFirst( ) {
+        if ( this.isEmpty() )
+            return null;
+
+        this.fillBottom();
+        this.remove(minE);
+        return minE;
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the queue
+     * and returns those events.
+     * Notice that a singleton instance of the Events class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * The field size of the returned object contains
+     * the number of events removed from the queue. That number is:
+     *   zero, if there are no events in the queue;
+     *   the length of the array, if there are more events with the minimum
+     *       time than the capacity of the array.
+     *
+     * @return some events in the queue
+     */
+    public Events removeMany( ) {
+        Event[] arr = minA.array;
+        int max = (int) Math.min(arr.length, size);
+        if ( max == 0 )
+            minA.size = 0;
+        else {
+            // All the events with the minimum time are in the bottom.
+            this.fillBottom();
+            long minK = mem.getKey(botHead);
+            int c = 0;
+            do
+                {
+                    this.remove(arr[c]);
+                    c++;
+                }
+            while ( c < max && botHead != NIL && mem.getKey(botHead) == minK );
+            minA.size = c;
+        }
+        return minA;
+    }
+
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max ) {
+            this.fillBottom();
+            if ( mem.getKey(botHead) > maxTime )
+                break;
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.remove(minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        return minA;
+    }
+
+
+    /**
+     * Hands all the events of the queue to the sink, tier by tier
+     * (not in time order), and leaves the queue unchanged.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public void copyTo( EventSink events ) throws IOException {
+        Event ev = new Event();
+        this.copyList(topHead, ev, events);
+        for ( int r = 0; r < nRungs; r++ ) {
+            // The buckets beyond the last event may be left from an older rung.
+            long left = rCount[r];
+            for ( int b = rCur[r]; left > 0L; b++ )
+                left -= this.copyList(rHeads[r][b], ev, events);
+        }
+        this.copyList(botHead, ev, events);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Hands the events of the list to the sink (through ev)
+    // and returns their number.
+    private long copyList( long list, Event ev, EventSink events )
+        throws IOException {
+        long n = 0L;
+        for ( long idx = list; idx != NIL; idx = mem.getNext(idx) ) {
+            mem.getEntry(idx, ev);
+            events.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+            n++;
+        }
+        return n;
+    }
+
+
+    // Removes the first event of the bottom
+    // and returns that event in the parameter res.
+    //
+    // Pre: botHead != NIL
+    private void remove( Event res ) {
+        long idx = botHead;
+        botHead = mem.getNext(idx);
+        if ( botHead == NIL )
+            botTail = NIL;
+        botCount--;
+        mem.getEntry(idx, res);
+        mem.release(idx);
+        size--;
+    }
+
+
+    // Moves events down the ladder until the bottom is not empty.
+    //
+    // Pre: !this.isEmpty()
+    private void fillBottom( ) {
+        while ( botHead == NIL ) {
+            if ( nRungs == 0 ) {
+                this.spawnFromTop();
+                continue;
+            }
+            int r = nRungs - 1;
+            if ( rCount[r] == 0L ) {
+                nRungs--;
+                continue;
+            }
+            long[] heads = rHeads[r];
+            int b = rCur[r];
+            while ( heads[b] == NIL )
+                b++;
+            long bStart = rStart[r] + b * rWidth[r];
+            rCur[r] = b + 1;
+            rCurStart[r] = bStart + rWidth[r];
+
+            long list = heads[b];
+            heads[b] = NIL;
+            rTails[r][b] = NIL;
+            // Count the events and check whether they are already in order.
+            long n = 0L;
+            long tail = list;
+            boolean sorted = true;
+            for ( long idx = list; idx != NIL; idx = mem.getNext(idx) ) {
+                if ( sorted && mem.getKey(idx) < mem.getKey(tail) )
+                    sorted = false;
+                tail = idx;
+                n++;
+            }
+            rCount[r] -= n;
+            if ( sorted ) {
+                botHead = list;
+                botTail = tail;
+                botCount = n;
+            }
+            else if ( n > THRESHOLD && nRungs < MAX_RUNGS && rWidth[r] > 1L )
+                this.spawn(list, n, bStart, rWidth[r]);
+            else {
+                botHead = this.sort(list, n);
+                botTail = botHead;
+                while ( mem.getNext(botTail) != NIL )
+                    botTail = mem.getNext(botTail);
+                botCount = n;
+            }
+        }
+    }
+
+
+    // Moves all the events in the top to a new rung 0.
+    //
+    // Pre: nRungs == 0 && topCount > 0
+    private void spawnFromTop( ) {
+        long list = topHead;
+        long n = topCount;
+        long start = topMin;
+        long span = topMax - topMin + 1;
+        topHead = topTail = NIL;
+        topCount = 0L;
+        topMin = Long.MAX_VALUE;
+        topMax = Long.MIN_VALUE;
+        int nb = (int) Math.min(Math.min(n, MAX_BUCKETS), span);
+        long width = (span + nb - 1) / nb;
+        this.newRung(start, width, nb);
+        topStart = start + nb * width;
+        this.distribute(0, list, n);
+    }
+
+
+    // Spreads the list with n events, all in [start, start + width),
+    // over a new finer rung.
+    //
+    // Pre: nRungs < MAX_RUNGS && width > 1
+    private void spawn( long list, long n, long start, long width ) {
+        int nb = (int) Math.min(Math.min(n, MAX_BUCKETS), width);
+        int r = nRungs;
+        this.newRung(start, (width + nb - 1) / nb, nb);
+        this.distribute(r, list, n);
+    }
+
+
+    // Moves the bottom to a new rung below the finest one. The new rung
+    // covers up to the current bucket of the finest rung (or the top), so
+    // that every later insertion below that bound still fits in it.
+    //
+    // Pre: nRungs < MAX_RUNGS && the bottom has at least two distinct times
+    private void spawnFromBottom( ) {
+        long list = botHead;
+        long n = botCount;
+        long start = mem.getKey(botHead);
+        long span = (nRungs > 0 ? rCurStart[nRungs - 1] : topStart) - start;
+        botHead = botTail = NIL;
+        botCount = 0L;
+        int nb = (int) Math.min(Math.min(n, MAX_BUCKETS), span);
+        int r = nRungs;
+        this.newRung(start, (span + nb - 1) / nb, nb);
+        this.distribute(r, list, n);
+    }
+
+
+    // Adds a rung with nb empty buckets below the finest one.
+    private void newRung( long start, long width, int nb ) {
+        int r = nRungs;
+        if ( rHeads[r] == null || rHeads[r].length < nb ) {
+            rHeads[r] = new long[nb];
+            rTails[r] = new long[nb];
+        }
+        Arrays.fill(rHeads[r], 0, nb, NIL);
+        Arrays.fill(rTails[r], 0, nb, NIL);
+        rStart[r] = start;
+        rWidth[r] = width;
+        rCur[r] = 0;
+        rCurStart[r] = start;
+        rCount[r] = 0L;
+        nRungs++;
+    }
+
+
+    // Appends the n events of the list to their buckets in rung r.
+    private void distribute( int r, long list, long n ) {
+        long[] heads = rHeads[r];
+        long[] tails = rTails[r];
+        long start = rStart[r];
+        long width = rWidth[r];
+        long idx = list;
+        while ( idx != NIL ) {
+            long next = mem.getNext(idx);
+            mem.setNext(idx, NIL);
+            this.append(heads, tails, (int) ((mem.getKey(idx) - start) / width), idx);
+            idx = next;
+        }
+        rCount[r] += n;
+    }
+
+
+    // Appends the entry idx to bucket b.
+    private void append( long[] heads, long[] tails, int b, long idx ) {
+        if ( tails[b] == NIL )
+            heads[b] = idx;
+        else
+            mem.setNext(tails[b], idx);
+        tails[b] = idx;
+    }
+
+
+    // Links the entry idx, with the specified time, into the bottom,
+    // after the entries with smaller or equal time.
+    private void insertBottom( long idx, long time ) {
+        if ( botTail == NIL ) {
+            botHead = idx;
+            botTail = idx;
+        }
+        else if ( mem.getKey(botTail) <= time ) {
+            mem.setNext(botTail, idx);
+            botTail = idx;
+        }
+        else if ( time < mem.getKey(botHead) ) {
+            mem.setNext(idx, botHead);
+            botHead = idx;
+        }
+        else {
+            long prev = botHead;
+            long next = mem.getNext(prev);
+            while ( mem.getKey(next) <= time ) {
+                prev = next;
+                next = mem.getNext(prev);
+            }
+            mem.setNext(idx, next);
+            mem.setNext(prev, idx);
+        }
+        botCount++;
+    }
+
+
+    // Sorts the list with n entries by time, keeping the insertion order
+    // of entries with the same time, and returns its new head.
+    private long sort( long list, long n ) {
+        if ( n <= 1L )
+            return list;
+        long half = n / 2;
+        long last = list;
+        for ( long i = 1; i < half; i++ )
+            last = mem.getNext(last);
+        long right = mem.getNext(last);
+        mem.setNext(last, NIL);
+        return this.merge(this.sort(list, half), this.sort(right, n - half));
+    }
+
+
+    // Merges two sorted lists, taking from the left one on ties.
+    private long merge( long left, long right ) {
+        long head, tail;
+        if ( mem.getKey(right) < mem.getKey(left) ) {
+            head = right;
+            right = mem.getNext(right);
+        }
+        else {
+            head = left;
+            left = mem.getNext(left);
+        }
+        tail = head;
+        while ( left != NIL && right != NIL ) {
+            if ( mem.getKey(right) < mem.getKey(left) ) {
+                mem.setNext(tail, right);
+                tail = right;
+                right = mem.getNext(right);
+            }
+            else {
+                mem.setNext(tail, left);
+                tail = left;
+                left = mem.getNext(left);
+            }
+        }
+        mem.setNext(tail, left != NIL ? left : right);
+        return head;
+    }
+
+}
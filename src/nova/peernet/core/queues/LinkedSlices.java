@@ -0,0 +1,179 @@
+package nova.peernet.core.queues;
+
+import java.util.Arrays;
+
+import peernet.core.Event;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * An extendable array of slices where every entry has an extra link column,
+ * so that entries can be chained into lists (buckets) without moving them.
+ * Entries are addressed by a long index; released entries are kept in a
+ * free list and reused by later allocations.
+ */
+class LinkedSlices {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // The null link.
+    public static final long NIL = -1L;
+
+    // Default capacity of the extendable array.
+    private static final int DEF_VEC_CAP = 16;
+
+    // Maximum capacity of the extendable array: 2^30
+    private static final int MAX_VEC_CAP = 1073741824;
+
+    // The growth factor of the extendable arrays.
+    private static final int GROWTH_FACTOR = 2;
+
+    // Initial capacity of a link array: 2^16 (the default slice capacity).
+    private static final int DEF_LINK_CAP = 65536;
+
+    // Maximum number of entries: 2^60
+    public static final long MAX_CAPACITY =
+        ((long) MAX_VEC_CAP) * Slice.MAX_CAPACITY;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Memory: an extendable array of slices and their link columns.
+    private Slice[] vec;
+    private long[][] links;
+
+    // Number of slices in the array.
+    private int vecSize;
+
+    // Number of entries ever appended to the slices.
+    private long top;
+
+    // Number of allocated (not released) entries.
+    private long size;
+
+    // Head of the list of released entries.
+    private long free;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    public LinkedSlices( ) {
+        vec = new Slice[DEF_VEC_CAP];
+        links = new long[DEF_VEC_CAP][];
+        vecSize = 0;
+        top = 0L;
+        size = 0L;
+        free = NIL;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    // Returns the number of allocated entries.
+    public long size( ) {
+        return size;
+    }
+
+
+    // Returns true iff no more entries can be allocated.
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    // Stores the event in a free entry and returns its index.
+    // The link of the new entry is NIL.
+    // Pre: !this.isFull()
+    public long allocate( long time, Address src, Node node, byte pid,
+                          Object event ) {
+        long idx;
+        if ( free != NIL ) {
+            idx = free;
+            Slice slc = vec[(int) (idx / Slice.MAX_CAPACITY)];
+            int pos = (int) (idx % Slice.MAX_CAPACITY);
+            free = links[(int) (idx / Slice.MAX_CAPACITY)][pos];
+            slc.setEntry(pos, time, src, node, pid, event);
+        }
+        else {
+            idx = top;
+            int pos = (int) (idx % Slice.MAX_CAPACITY);
+            if ( pos == 0 )
+                this.addSlice();
+            int s = vecSize - 1;
+            vec[s].addLast(time, src, node, pid, event);
+            if ( pos == links[s].length )
+                links[s] = Arrays.copyOf(links[s],
+                    (int) Math.min((long) GROWTH_FACTOR * pos, Slice.MAX_CAPACITY));
+            top++;
+        }
+        links[(int) (idx / Slice.MAX_CAPACITY)][(int) (idx % Slice.MAX_CAPACITY)] = NIL;
+        size++;
+        return idx;
+    }
+
+
+    // Releases the entry, dropping the references it holds.
+    // Pre: idx is allocated
+    public void release( long idx ) {
+        int s = (int) (idx / Slice.MAX_CAPACITY);
+        int pos = (int) (idx % Slice.MAX_CAPACITY);
+        vec[s].clearEntry(pos);
+        links[s][pos] = free;
+        free = idx;
+        size--;
+    }
+
+
+    // Returns the key of the entry.
+    // Pre: idx is allocated
+    public long getKey( long idx ) {
+        return vec[(int) (idx / Slice.MAX_CAPACITY)].getKey((int) (idx % Slice.MAX_CAPACITY));
+    }
+
+
+    // Returns the entry in the parameter ev.
+    // Pre: idx is allocated
+    public void getEntry( long idx, Event ev ) {
+        vec[(int) (idx / Slice.MAX_CAPACITY)].getEntry((int) (idx % Slice.MAX_CAPACITY), ev);
+    }
+
+
+    // Returns the link of the entry.
+    // Pre: idx is allocated
+    public long getNext( long idx ) {
+        return links[(int) (idx / Slice.MAX_CAPACITY)][(int) (idx % Slice.MAX_CAPACITY)];
+    }
+
+
+    // Updates the link of the entry.
+    // Pre: idx is allocated
+    public void setNext( long idx, long next ) {
+        links[(int) (idx / Slice.MAX_CAPACITY)][(int) (idx % Slice.MAX_CAPACITY)] = next;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Pre: !this.isFull()
+    private void addSlice( ) {
+        if ( vecSize == vec.length ) {
+            int cap = GROWTH_FACTOR * vecSize;
+            vec = Arrays.copyOf(vec, cap);
+            links = Arrays.copyOf(links, cap);
+        }
+        vec[vecSize] = new HeapSlice();
+        links[vecSize] = new long[DEF_LINK_CAP];
+        vecSize++;
+    }
+
+}
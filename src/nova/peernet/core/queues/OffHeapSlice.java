@@ -0,0 +1,287 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import peernet.core.Event;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A slice whose primitive columns (times and pids) are kept outside the
+ * Java heap, in direct buffers, split in chunks of CHUNK_SIZE positions.
+ * The reference columns (srcs, nodes and events) stay on the heap, split
+ * in pages of HeapSlice.PAGE_SIZE positions. Chunks and pages are
+ * allocated on demand, so growing the slice never copies the events
+ * already in it.
+ *
+ * As the slice drains (removeLast and clear), the chunks and pages beyond
+ * the ones in use and a spare one are left to the garbage collector, which
+ * also frees the memory of the direct buffers; they are not kept by the
+ * PagePool, whose pages have on-heap primitive columns.
+ *
+ * All the slices of a heap must be of the same kind: copyEntry only
+ * accepts another OffHeapSlice.
+ */
+class OffHeapSlice extends Slice {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Capacity of a chunk of the primitive columns: 2^20
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Capacity of a page of the reference columns: 2^16.
+    private static final int PAGE_SHIFT = HeapSlice.PAGE_SHIFT;
+    private static final int PAGE_SIZE = HeapSlice.PAGE_SIZE;
+    private static final int PAGE_MASK = HeapSlice.PAGE_MASK;
+
+    // The growth factor of the directories of the reference columns.
+    private static final int GROWTH_FACTOR = 2;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Off-heap memory of the slice: chunks of the primitive columns.
+    private LongBuffer[] times;
+    private ByteBuffer[] pids;
+
+    // Number of chunks allocated.
+    private int chunks;
+
+    // On-heap memory of the slice: 3 columns, as directories of pages.
+    private Address[][] srcs;
+    private Node[][] nodes;
+    private Object[][] events;
+
+    // Number of pages allocated.
+    private int pages;
+
+    // Number of events in the slice.
+    private int size;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    // Creates an off-heap slice with one chunk and one page.
+    public OffHeapSlice( ) {
+        times = new LongBuffer[MAX_CAPACITY >>> CHUNK_SHIFT];
+        pids = new ByteBuffer[MAX_CAPACITY >>> CHUNK_SHIFT];
+        chunks = 0;
+        srcs = new Address[1][];
+        nodes = new Node[1][];
+        events = new Object[1][];
+        pages = 0;
+        size = 0;
+        this.addChunk();
+        this.addPage();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public boolean isEmpty( ) {
+        return size == 0;
+    }
+
+
+    @Override
+    public int size( ) {
+        return size;
+    }
+
+
+    @Override
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    @Override
+    public long getKey( int pos ) {
+        return times[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+    }
+
+
+    @Override
+    public void getEntry( int pos, Event ev ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        ev.time = times[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+        ev.src = srcs[p][i];
+        ev.node = nodes[p][i];
+        ev.pid = pids[pos >>> CHUNK_SHIFT].get(pos & CHUNK_MASK);
+        ev.event = events[p][i];
+    }
+
+
+    @Override
+    public void setEntry( int pos, long time, Address src, Node node,
+                          byte pid, Object event ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        times[pos >>> CHUNK_SHIFT].put(pos & CHUNK_MASK, time);
+        srcs[p][i] = src;
+        nodes[p][i] = node;
+        pids[pos >>> CHUNK_SHIFT].put(pos & CHUNK_MASK, pid);
+        events[p][i] = event;
+    }
+
+
+    @Override
+    public void setEntry( int pos, Event ev ) {
+        this.setEntry(pos, ev.time, ev.src, ev.node, ev.pid, ev.event);
+    }
+
+
+    @Override
+    public void clearEntry( int pos ) {
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        srcs[p][i] = null;
+        nodes[p][i] = null;
+        events[p][i] = null;
+    }
+
+
+    // Pre: slc instanceof OffHeapSlice
+    @Override
+    public void copyEntry( Slice slc, int idx, int pos ) {
+        OffHeapSlice o = (OffHeapSlice) slc;
+        int sp = idx >>> PAGE_SHIFT, si = idx & PAGE_MASK;
+        int p = pos >>> PAGE_SHIFT, i = pos & PAGE_MASK;
+        times[pos >>> CHUNK_SHIFT].put(pos & CHUNK_MASK,
+            o.times[idx >>> CHUNK_SHIFT].get(idx & CHUNK_MASK));
+        srcs[p][i] = o.srcs[sp][si];
+        nodes[p][i] = o.nodes[sp][si];
+        pids[pos >>> CHUNK_SHIFT].put(pos & CHUNK_MASK,
+            o.pids[idx >>> CHUNK_SHIFT].get(idx & CHUNK_MASK));
+        events[p][i] = o.events[sp][si];
+    }
+
+
+    @Override
+    public void addLast( long time, Address src, Node node, byte pid,
+                         Object event ) {
+        if ( size == pages << PAGE_SHIFT )
+            this.addPage();
+        if ( size == chunks << CHUNK_SHIFT )
+            this.addChunk();
+        this.setEntry(size, time, src, node, pid, event);
+        size++;
+    }
+
+
+    // Pre: 0 <= idx && idx + count <= slc.size
+    //      && size + count <= MAX_CAPACITY
+    @Override
+    public void addRange( Slice slc, int idx, int count ) {
+        Event ev = new Event();
+        for ( int pos = idx; pos < idx + count; pos++ ) {
+            slc.getEntry(pos, ev);
+            this.addLast(ev.time, ev.src, ev.node, ev.pid, ev.event);
+        }
+    }
+
+
+    @Override
+    public void clear( ) {
+        for ( int p = 0; p < pages && p << PAGE_SHIFT < size; p++ ) {
+            int n = Math.min(size - (p << PAGE_SHIFT), PAGE_SIZE);
+            Arrays.fill(srcs[p], 0, n, null);
+            Arrays.fill(nodes[p], 0, n, null);
+            Arrays.fill(events[p], 0, n, null);
+        }
+        size = 0;
+        this.trim();
+    }
+
+
+    @Override
+    public void removeLast( Event ev ) {
+        size--;
+        this.getEntry(size, ev);
+        this.clearEntry(size);
+        if ( (size & PAGE_MASK) == 0 )
+            this.trim();
+    }
+
+
+    @Override
+    public void copyTo( int idx, EventSink sink ) throws IOException {
+        for ( ; idx < size; idx++ ) {
+            int p = idx >>> PAGE_SHIFT, i = idx & PAGE_MASK;
+            int c = idx >>> CHUNK_SHIFT, j = idx & CHUNK_MASK;
+            sink.add(times[c].get(j), srcs[p][i], nodes[p][i], pids[c].get(j),
+                     events[p][i]);
+        }
+    }
+
+
+    @Override
+    public void reserve( int minCap ) {
+        while ( minCap > pages << PAGE_SHIFT )
+            this.addPage();
+        while ( minCap > chunks << CHUNK_SHIFT )
+            this.addChunk();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Allocates one more chunk of the primitive columns.
+    private void addChunk( ) {
+        times[chunks] = ByteBuffer.allocateDirect(CHUNK_SIZE * Long.BYTES)
+            .order(ByteOrder.nativeOrder()).asLongBuffer();
+        pids[chunks] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        chunks++;
+    }
+
+
+    // Allocates one more page of the reference columns.
+    private void addPage( ) {
+        if ( pages == srcs.length ) {
+            int dir = GROWTH_FACTOR * pages;
+            srcs = Arrays.copyOf(srcs, dir);
+            nodes = Arrays.copyOf(nodes, dir);
+            events = Arrays.copyOf(events, dir);
+        }
+        srcs[pages] = new Address[PAGE_SIZE];
+        nodes[pages] = new Node[PAGE_SIZE];
+        events[pages] = new Object[PAGE_SIZE];
+        pages++;
+    }
+
+
+    // Drops the chunks and pages beyond the ones holding the last event and
+    // a spare one (the first chunk and page are always kept).
+    // Pre: the positions from size on hold no references
+    private void trim( ) {
+        int keep = ((size + PAGE_MASK) >>> PAGE_SHIFT) + 1;
+        while ( pages > keep ) {
+            pages--;
+            srcs[pages] = null;
+            nodes[pages] = null;
+            events[pages] = null;
+        }
+        keep = ((size + CHUNK_MASK) >>> CHUNK_SHIFT) + 1;
+        while ( chunks > keep ) {
+            chunks--;
+            times[chunks] = null;
+            pids[chunks] = null;
+        }
+    }
+
+}
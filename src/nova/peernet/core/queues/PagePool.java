@@ -0,0 +1,143 @@
+package nova.peernet.core.queues;
+
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A pool of the pages released by slices as they drain, shared by all the
+ * queues and buffers of the process. A slice that needs a page takes one
+ * from the pool before allocating a new one, so the pages released by a
+ * queue after a burst of events are reused by the next burst (or by
+ * another queue) instead of being allocated again. Pages released while
+ * the pool is at its capacity are left to the garbage collector; with
+ * capacity 0, drained memory is always returned to the garbage collector.
+ *
+ * The pool is thread-safe: slices of different queues can be drained by
+ * different threads.
+ */
+public final class PagePool {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Default capacity of the pool, in pages.
+    public static final int DEFAULT_CAPACITY = 16;
+
+
+    // -----------------------------------------------------------------------
+    // Class variables
+    // -----------------------------------------------------------------------
+
+    // Maximum number of pages kept by the pool.
+    private static int capacity = DEFAULT_CAPACITY;
+
+    // Stack of the pages kept by the pool, linked by Page.next.
+    private static Page top;
+
+    // Number of pages kept by the pool.
+    private static int count;
+
+
+    // -----------------------------------------------------------------------
+    // Page
+    // -----------------------------------------------------------------------
+
+    // A page of the 5 columns of a slice, with HeapSlice.PAGE_SIZE positions.
+    // The reference columns of a page in the pool hold only nulls.
+    static final class Page {
+        final long[] times;
+        final Address[] srcs;
+        final Node[] nodes;
+        final byte[] pids;
+        final Object[] events;
+        Page next;
+
+        Page( long[] times, Address[] srcs, Node[] nodes, byte[] pids,
+              Object[] events ) {
+            this.times = times;
+            this.srcs = srcs;
+            this.nodes = nodes;
+            this.pids = pids;
+            this.events = events;
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private PagePool( ) {
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Sets the maximum number of pages kept by the pool, dropping the pages
+     * in excess.
+     *
+     * @param pages: the capacity of the pool (0 disables pooling).
+     */
+    public static synchronized void setCapacity( int pages ) {
+        if ( pages < 0 )
+            throw new IllegalArgumentException("Invalid page pool capacity: " + pages);
+        capacity = pages;
+        while ( count > capacity ) {
+            top = top.next;
+            count--;
+        }
+    }
+
+
+    /**
+     * Returns the maximum number of pages kept by the pool.
+     */
+    public static synchronized int getCapacity( ) {
+        return capacity;
+    }
+
+
+    /**
+     * Returns the number of pages currently kept by the pool.
+     */
+    public static synchronized int size( ) {
+        return count;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Package methods
+    // ------------------------------------------------------------------------
+
+    // Returns a page, from the pool if it is not empty, or a new one.
+    static Page acquire( ) {
+        synchronized ( PagePool.class ) {
+            if ( top != null ) {
+                Page page = top;
+                top = page.next;
+                page.next = null;
+                count--;
+                return page;
+            }
+        }
+        return new Page(new long[HeapSlice.PAGE_SIZE], new Address[HeapSlice.PAGE_SIZE],
+                        new Node[HeapSlice.PAGE_SIZE], new byte[HeapSlice.PAGE_SIZE],
+                        new Object[HeapSlice.PAGE_SIZE]);
+    }
+
+
+    // Returns a page whose reference columns hold only nulls to the pool,
+    // or to the garbage collector if the pool is full.
+    static synchronized void release( Page page ) {
+        if ( count < capacity ) {
+            page.next = top;
+            top = page;
+            count++;
+        }
+    }
+
+}
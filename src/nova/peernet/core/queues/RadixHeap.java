@@ -0,0 +1,446 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+
+import peernet.core.Event;
+import peernet.core.Events;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+/**
+ * A radix heap (R. K. Ahuja, K. Mehlhorn, J. B. Orlin and R. E. Tarjan,
+ * 1990) for monotone workloads: no event may be inserted with a time smaller
+ * than the time of the last removed event, which holds for the simulator
+ * since events are always scheduled at or after the current time.
+ *
+ * An event with time t is kept in bucket 0 if t == last, and otherwise in
+ * the bucket given by the highest bit in which t and last differ (1 to 64).
+ * Insertion is O(1). When bucket 0 is empty, the first non-empty bucket is
+ * emptied into the lower buckets around its minimum, which becomes the new
+ * last; each event moves down at most 64 times, so removal is O(log C)
+ * amortized, C being the span of the times in the heap.
+ *
+ * Events with the same time are always in the same bucket, in insertion
+ * order, so they are removed in insertion order.
+ *
+ * Monotonicity violations are reported (with an IllegalArgumentException)
+ * when the heap is created with checkMonotone set, or when Java assertions
+ * are enabled (-ea). Otherwise, an event in the past is delivered together
+ * with the events at time last, keeping its own time.
+ * For this reason, BigEngineSim rejects this heap with tie-break keys
+ * (simulation.heap.tiebits), which do not keep the times monotone.
+ *
+ * Each bucket is a chain of fixed-size slices (chunks), written at the
+ * tail and read from the head, so that buckets are scanned and filled
+ * sequentially. Emptied chunks are kept in a pool for reuse, so the memory
+ * used is bounded by the number of events plus one chunk per bucket, and
+ * the heap is not limited to Integer.MAX_VALUE events.
+ */
+public class RadixHeap implements BatchEventQueue {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Number of buckets: one per bit of the time, plus bucket 0.
+    private static final int BUCKETS = 65;
+
+    // Capacity of a chunk: 2^12
+    private static final int CHUNK_SIZE = 4096;
+
+    // Maximum capacity of the heap: 2^60
+    public static final long MAX_CAPACITY = 1L << 60;
+
+    // Default capacity of the array with the events with minimum time.
+    public static final int DEF_ARR_CAP = 1024;
+
+    // True iff Java assertions are enabled for this class.
+    private static final boolean ASSERTIONS;
+    static {
+        boolean enabled = false;
+        assert enabled = true;
+        ASSERTIONS = enabled;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // First and last chunks of each bucket.
+    private Chunk[] heads;
+    private Chunk[] tails;
+
+    // Position of the first event in the first chunk of bucket 0
+    // (the other buckets are always read from position 0).
+    private int pos0;
+
+    // Emptied chunks.
+    private Chunk pool;
+
+    // Time of the last removed event (all events have time >= last).
+    private long last;
+
+    // Minimum time of the events in the heap, valid if minKnown is true.
+    // It is only computed when bucket 0 is empty, so that looking at the
+    // next time does not move last past the time of the last removed event.
+    private long min;
+    private boolean minKnown;
+
+    // Number of events in the heap.
+    private long size;
+
+    // True iff insertions before last are reported.
+    private final boolean check;
+
+    // The object used to return the events with minimum time.
+    private Events minA;
+
+    // The object used to return an event with minimum time.
+    private Event minE;
+
+    // The event used to move events between buckets.
+    private Event tmp;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates an empty radix heap
+     * which returns an array with the default capacity (DEF_ARR_CAP)
+     * when the method removeMany is called.
+     * Monotonicity is only checked if Java assertions are enabled.
+     */
+    public RadixHeap( ) {
+        this(DEF_ARR_CAP, false);
+    }
+
+    /**
+     * Creates an empty radix heap
+     * which returns an array with the specified capacity
+     * when the method removeMany is called.
+     *
+     * @param capacity:      the capacity of the array in the Events object
+     *                       returned by the method removeMany.
+     * @param checkMonotone: if true, inserting an event with a time smaller
+     *                       than the last removed one raises an
+     *                       IllegalArgumentException.
+     */
+    public RadixHeap( int capacity, boolean checkMonotone ) {
+        heads = new Chunk[BUCKETS];
+        tails = new Chunk[BUCKETS];
+        pos0 = 0;
+        pool = null;
+        minKnown = false;
+        last = Long.MIN_VALUE;
+        size = 0L;
+        check = checkMonotone || ASSERTIONS;
+        minA = new Events(capacity);
+        minE = new Event();
+        tmp = new Event();
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the heap contains no events.
+     */
+    public boolean isEmpty( ) {
+        return size == 0L;
+    }
+
+
+    /**
+     * Returns true iff the heap cannot contain more events.
+     */
+    public boolean isFull( ) {
+        return size == MAX_CAPACITY;
+    }
+
+
+    /**
+     * Returns the number of events in the heap.
+     */
+    public long size( ) {
+        return size;
+    }
+
+
+    /**
+     * Returns the minimum time of the events in the heap.
+     * If there are no events in the heap, returns Long.MAX_VALUE.
+     *
+     * @return the smallest time of an event in the heap
+     *         or Long.MAX_VALUE (if the size is zero).
+     */
+    public long getNextTime( ) {
+        if ( this.isEmpty() )
+            return Long.MAX_VALUE;
+
+        if ( heads[0] != null )
+            return heads[0].slc.getKey(pos0);
+        if ( !minKnown ) {
+            min = this.firstBucketMin();
+            minKnown = true;
+        }
+        return min;
+    }
+
+
+    /**
+     * Inserts the specified event into the heap.
+     * If the heap cannot contain one more event,
+     * a runtime exception is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     *               (not smaller than the time of the last removed event)
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( this.isFull() )
+            throw new RuntimeException("Heap is full.");
+        if ( time < last && check )
+            throw new IllegalArgumentException("Event at time " + time
+                + " inserted after removing an event at time " + last);
+
+        this.append(time < last ? 0 : this.bucket(time), time, src, node, pid, event);
+        if ( minKnown && time < min )
+            min = time;
+        size++;
+    }
+
+
+    /**
+     * Removes an event with the minimum time from the heap
+     * and returns that event.
+     * Notice that a singleton instance of the Event class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * If there are no events in the heap, returns null.
+     *
+     * @return an event in the heap
+     *         or null (if the size is zero).
+     */
+    public Event removeFirst( ) {
+        if ( this.isEmpty() )
+            return null;
+
+        this.settle();
+        this.remove(minE);
+        return minE;
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the heap
+     * and returns those events.
+     * Notice that a singleton instance of the Events class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * The field size of the returned object contains
+     * the number of events removed from the heap. That number is:
+     *   zero, if there are no events in the heap;
+     *   the length of the array, if there are more events with the minimum
+     *       time than the capacity of the array.
+     *
+     * @return some events in the heap
+     */
+    public Events removeMany( ) {
+        Event[] arr = minA.array;
+        int max = (int) Math.min(arr.length, size);
+        if ( max == 0 )
+            minA.size = 0;
+        else {
+            // Bucket 0 holds exactly the events with time last.
+            this.settle();
+            int c = 0;
+            do
+                {
+                    this.remove(arr[c]);
+                    c++;
+                }
+            while ( c < max && heads[0] != null );
+            minA.size = c;
+        }
+        return minA;
+    }
+
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the heap
+     */
+    public Events removeUpTo( long maxTime, int maxCount ) {
+        int max = (int) Math.min(maxCount, size);
+        int c = 0;
+        while ( c < max && this.getNextTime() <= maxTime ) {
+            if ( c == minA.array.length )
+                minA = Batches.grow(minA, c, maxCount);
+            this.settle();
+            this.remove(minA.array[c]);
+            c++;
+        }
+        minA.size = c;
+        return minA;
+    }
+
+
+    /**
+     * Hands all the events of the heap to the sink, bucket by bucket
+     * (not in time order), and leaves the heap unchanged. The events cannot
+     * be removed and inserted again, as the heap only takes events at or
+     * after the last removed one.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public void copyTo( EventSink events ) throws IOException {
+        for ( int b = 0; b < BUCKETS; b++ )
+            for ( Chunk c = heads[b]; c != null; c = c.next )
+                c.slc.copyTo(c == heads[0] ? pos0 : 0, events);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Returns the bucket of an event with the specified time.
+    //
+    // Pre: time >= last
+    private int bucket( long time ) {
+        return 64 - Long.numberOfLeadingZeros(time ^ last);
+    }
+
+
+    // Appends the event to bucket b.
+    private void append( int b, long time, Address src, Node node, byte pid,
+                         Object event ) {
+        Chunk t = tails[b];
+        if ( t == null || t.slc.size() == CHUNK_SIZE ) {
+            Chunk c = this.newChunk();
+            if ( t == null )
+                heads[b] = c;
+            else
+                t.next = c;
+            tails[b] = c;
+            t = c;
+        }
+        t.slc.addLast(time, src, node, pid, event);
+    }
+
+
+    // Removes the first event of bucket 0
+    // and returns that event in the parameter res.
+    //
+    // Pre: heads[0] != null
+    private void remove( Event res ) {
+        Chunk h = heads[0];
+        h.slc.getEntry(pos0, res);
+        pos0++;
+        if ( pos0 == h.slc.size() ) {
+            heads[0] = h.next;
+            if ( h.next == null )
+                tails[0] = null;
+            this.freeChunk(h);
+            pos0 = 0;
+        }
+        size--;
+        minKnown = false;
+    }
+
+
+    // Makes bucket 0 non-empty, by moving last to the minimum of the first
+    // non-empty bucket and redistributing that bucket.
+    //
+    // Pre: !this.isEmpty()
+    private void settle( ) {
+        if ( heads[0] != null )
+            return;
+        if ( !minKnown )
+            min = this.firstBucketMin();
+        minKnown = false;
+        int b = 1;
+        while ( heads[b] == null )
+            b++;
+        Chunk list = heads[b];
+        heads[b] = tails[b] = null;
+        last = min;
+        // Every event moves to a bucket below b.
+        Chunk c = list;
+        while ( c != null ) {
+            Slice slc = c.slc;
+            for ( int pos = 0, n = slc.size(); pos < n; pos++ ) {
+                slc.getEntry(pos, tmp);
+                this.append(this.bucket(tmp.time), tmp.time, tmp.src, tmp.node, tmp.pid, tmp.event);
+            }
+            Chunk next = c.next;
+            this.freeChunk(c);
+            c = next;
+        }
+        tmp.src = null;
+        tmp.node = null;
+        tmp.event = null;
+    }
+
+
+    // Returns the minimum time of the first non-empty bucket.
+    //
+    // Pre: !this.isEmpty()
+    private long firstBucketMin( ) {
+        int b = 0;
+        while ( heads[b] == null )
+            b++;
+        long res = Long.MAX_VALUE;
+        for ( Chunk c = heads[b]; c != null; c = c.next ) {
+            Slice slc = c.slc;
+            for ( int pos = 0, n = slc.size(); pos < n; pos++ )
+                if ( slc.getKey(pos) < res )
+                    res = slc.getKey(pos);
+        }
+        return res;
+    }
+
+
+    // Returns an empty chunk, from the pool if possible.
+    private Chunk newChunk( ) {
+        Chunk c = pool;
+        if ( c == null )
+            return new Chunk();
+        pool = c.next;
+        c.next = null;
+        return c;
+    }
+
+
+    // Empties the chunk and returns it to the pool.
+    private void freeChunk( Chunk c ) {
+        c.slc.clear();
+        c.next = pool;
+        pool = c;
+    }
+
+
+    // A fixed-size piece of a bucket.
+    private static final class Chunk {
+        final Slice slc = new HeapSlice(CHUNK_SIZE);
+        Chunk next;
+    }
+
+}
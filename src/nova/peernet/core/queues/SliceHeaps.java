@@ -0,0 +1,166 @@
+package nova.peernet.core.queues;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+import peernet.core.Event;
+
+// Support for the binary heaps kept in an extendable array of slices
+// (BigHeap, ConcurrentBigHeap and ConcurrentBigHeapWithInterval): the
+// position p of such a heap is at position p % Slice.MAX_CAPACITY of slice
+// p / Slice.MAX_CAPACITY, and the heap of size events uses the first
+// slices(size) slices of the array.
+final class SliceHeaps {
+
+    // The growth factor of the extendable array.
+    private static final int GROWTH_FACTOR = 2;
+
+    // Smallest level of the tree that heapify sifts down in parallel.
+    private static final long PAR_HEAPIFY_MIN = 65536;
+
+    // Number of positions of a level sifted down by each parallel task.
+    private static final long PAR_HEAPIFY_CHUNK = 16384;
+
+
+    private SliceHeaps( ) {
+    }
+
+
+    // Returns the number of slices used by a heap of size events.
+    static int slices( long size ) {
+        return (int) ((size + Slice.MAX_CAPACITY - 1) / Slice.MAX_CAPACITY);
+    }
+
+
+    // Returns a new, empty slice.
+    static Slice newSlice( boolean offHeap ) {
+        return offHeap ? new OffHeapSlice() : new HeapSlice();
+    }
+
+
+    // Appends count events of slice bSlc, starting at position 0, after the
+    // size events of the heap, and returns the array of slices (a larger
+    // one if it had to grow). The heap order is not restored (see heapify).
+    //
+    // Pre: size + count <= BigHeap.MAX_CAPACITY
+    static Slice[] append( Slice[] vec, long size, Slice bSlc, int count,
+                           boolean offHeap ) {
+        int vecSize = slices(size);
+        int pos = 0;
+        while ( pos < count ) {
+            if ( vecSize == 0 || vec[vecSize - 1].isFull() ) {
+                if ( vecSize == vec.length )
+                    vec = Arrays.copyOf(vec, GROWTH_FACTOR * vec.length);
+                if ( vec[vecSize] == null )
+                    vec[vecSize] = newSlice(offHeap);
+                vecSize++;
+            }
+            Slice slc = vec[vecSize - 1];
+            int c = Math.min(count - pos, Slice.MAX_CAPACITY - slc.size());
+            slc.addRange(bSlc, pos, c);
+            pos += c;
+        }
+        return vec;
+    }
+
+
+    // Allocates the memory to hold capacity events, and returns the array
+    // of slices (a larger one if it had to grow).
+    static Slice[] reserve( Slice[] vec, long capacity, boolean offHeap ) {
+        for ( int i = 0; (long) i * Slice.MAX_CAPACITY < capacity; i++ ) {
+            if ( i == vec.length )
+                vec = Arrays.copyOf(vec, GROWTH_FACTOR * vec.length);
+            if ( vec[i] == null )
+                vec[i] = newSlice(offHeap);
+            vec[i].reserve((int) Math.min(capacity - (long) i * Slice.MAX_CAPACITY,
+                                          Slice.MAX_CAPACITY));
+        }
+        return vec;
+    }
+
+
+    // Hands the size events of the heap to the sink, in heap order.
+    static void copyTo( Slice[] vec, long size, EventSink events ) throws IOException {
+        for ( int i = 0; i < slices(size); i++ )
+            vec[i].copyTo(0, events);
+    }
+
+
+    // Establishes the heap order property for all positions,
+    // sifting down every internal node, from the last level to the root
+    // (Floyd's method); the positions of each large level are sifted down
+    // in parallel, as the subtrees of the nodes of a level are disjoint.
+    static void heapify( Slice[] vec, long size ) {
+        if ( size < 2 )
+            return;
+        long lastParent = (size - 2) / 2;
+        int level = 63 - Long.numberOfLeadingZeros(lastParent + 1);
+        Event tmp = new Event();
+        for ( ; level >= 0; level-- ) {
+            // Positions of the level: [2^level - 1, 2^(level+1) - 1).
+            long lo = (1L << level) - 1;
+            long hi = Math.min(2 * lo + 1, lastParent + 1);
+            if ( hi - lo < PAR_HEAPIFY_MIN )
+                siftDownRange(vec, size, lo, hi, tmp);
+            else {
+                long chunks = (hi - lo + PAR_HEAPIFY_CHUNK - 1) / PAR_HEAPIFY_CHUNK;
+                LongStream.range(0, chunks).parallel().forEach(c ->
+                    siftDownRange(vec, size, lo + c * PAR_HEAPIFY_CHUNK,
+                                  Math.min(hi, lo + (c + 1) * PAR_HEAPIFY_CHUNK),
+                                  new Event()));
+            }
+        }
+    }
+
+
+    // Sifts down the positions in [lo, hi), using tmp as temporary storage.
+    private static void siftDownRange( Slice[] vec, long size, long lo, long hi,
+                                       Event tmp ) {
+        for ( long hole = hi - 1; hole >= lo; hole-- )
+            siftDown(vec, size, hole, tmp);
+    }
+
+
+    // Establishes the heap order property for the subtree rooted at hole
+    // when it holds for the subtrees of its children.
+    private static void siftDown( Slice[] vec, long size, long hole, Event tmp ) {
+        Slice hSlc = vec[(int) (hole / Slice.MAX_CAPACITY)];
+        int hPos = (int) (hole % Slice.MAX_CAPACITY);
+        hSlc.getEntry(hPos, tmp);
+        long key = tmp.time;
+        long start = hole;
+        long child = 2 * hole + 1;    // Left child.
+        while ( child < size ) {
+            // Find the smallest child.
+            Slice cSlc = vec[(int) (child / Slice.MAX_CAPACITY)];
+            int cPos = (int) (child % Slice.MAX_CAPACITY);
+            long cKey = cSlc.getKey(cPos);
+            long other = child + 1;
+            if ( other < size ) {
+                Slice oSlc = vec[(int) (other / Slice.MAX_CAPACITY)];
+                int oPos = (int) (other % Slice.MAX_CAPACITY);
+                long oKey = oSlc.getKey(oPos);
+                if ( oKey < cKey ) {
+                    child = other;
+                    cSlc = oSlc;
+                    cPos = oPos;
+                    cKey = oKey;
+                }
+            }
+            // Compare the smallest child with key.
+            if ( cKey < key ) {
+                hSlc.copyEntry(cSlc, cPos, hPos);
+                hole = child;
+                hSlc = cSlc;
+                hPos = cPos;
+                child = 2 * hole + 1;    // Left child.
+            }
+            else
+                break;
+        }
+        if ( hole != start )
+            hSlc.setEntry(hPos, tmp);
+    }
+
+}
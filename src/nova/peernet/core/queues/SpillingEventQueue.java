@@ -0,0 +1,641 @@
+package nova.peernet.core.queues;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+
+import peernet.core.Event;
+import peernet.core.Events;
+import peernet.core.Node;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * An event queue that keeps only the near future in memory and spills the
+ * far future to disk, for experiments with more events than fit in RAM.
+ *
+ * All the events with time < horizon are in an in-memory BigHeap (near).
+ * When near grows beyond its limit, it is drained in order: the first half
+ * stays in memory and the rest is written to disk as a sorted run, lowering
+ * the horizon. Later events beyond the horizon are collected in a second
+ * heap (pending) and written as a new run whenever it fills up. When near
+ * becomes empty, the next events are merged back from the runs and pending
+ * into near, and the horizon moves forward.
+ *
+ * Runs are segment files read through memory mappings. When there are
+ * more than FAN_IN runs, the FAN_IN smallest ones are merged into one, so
+ * the number of open files and mappings stays bounded. A segment file is
+ * deleted once its run is open (or, where open files cannot be deleted,
+ * once the run is consumed). Nodes, addresses and Schedule payloads are
+ * written as positions in a table kept in memory by each run, and dropped
+ * with it; other payloads are written by a pluggable EventSerializer.
+ */
+public class SpillingEventQueue implements BatchEventQueue {
+
+    // -----------------------------------------------------------------------
+    // Constants
+    // -----------------------------------------------------------------------
+
+    // Default maximum number of events in near: 2^26
+    public static final long DEF_MEM_LIMIT = 67108864L;
+
+    // Default maximum number of events in pending: 2^22
+    public static final long DEF_PENDING_LIMIT = 4194304L;
+
+    // Default capacity of the array with the events with minimum time.
+    public static final int DEF_ARR_CAP = 1024;
+
+    // Maximum number of runs on disk before some of them are merged.
+    private static final int FAN_IN = 16;
+
+    // Maximum size of a mapped window of a run: 2^30 bytes.
+    private static final long WINDOW = 1073741824L;
+
+    // Tags of the payloads in a run.
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TABLE = 1;
+    private static final byte TAG_SERIALIZED = 2;
+
+
+    // -----------------------------------------------------------------------
+    // Instance variables
+    // -----------------------------------------------------------------------
+
+    // Events with time < horizon.
+    private BigHeap near;
+
+    // Events with time >= horizon not yet written to a run.
+    private BigHeap pending;
+
+    // Runs on disk, ordered by the time of their next event.
+    private PriorityQueue<Run> runs;
+
+    // Number of events in the runs.
+    private long spilled;
+
+    // Every event with time < horizon is in near.
+    private long horizon;
+
+    private final long memLimit;
+    private final long pendingLimit;
+    private final int capacity;
+    private final File dir;
+    private final EventSerializer serializer;
+
+    // Number of runs created so far (used to name the segment files).
+    private int runCount;
+
+
+    // -----------------------------------------------------------------------
+    // Constructors
+    // -----------------------------------------------------------------------
+
+    /**
+     * Creates a queue with the default limits, spilling to a new directory
+     * under java.io.tmpdir and serializing payloads with Java serialization.
+     */
+    public SpillingEventQueue( ) {
+        this(new JavaEventSerializer());
+    }
+
+    /**
+     * Creates a queue with the default limits, spilling to a new directory
+     * under java.io.tmpdir.
+     *
+     * @param serializer: the serializer of the event payloads.
+     */
+    public SpillingEventQueue( EventSerializer serializer ) {
+        this(DEF_MEM_LIMIT, DEF_PENDING_LIMIT, null, serializer, DEF_ARR_CAP);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param memLimit:     the maximum number of events in memory before the
+     *                      farthest half of them is spilled.
+     * @param pendingLimit: the number of events beyond the horizon that are
+     *                      collected before being written as a run.
+     * @param dir:          the directory of the segment files
+     *                      (null for a new directory under java.io.tmpdir).
+     * @param serializer:   the serializer of the event payloads.
+     * @param capacity:     the capacity of the array in the Events object
+     *                      returned by the method removeMany.
+     */
+    public SpillingEventQueue( long memLimit, long pendingLimit, File dir,
+                               EventSerializer serializer, int capacity ) {
+        if ( memLimit < 2 || pendingLimit < 1 )
+            throw new IllegalArgumentException("Invalid spilling limits: " + memLimit + ", " + pendingLimit);
+        this.memLimit = memLimit;
+        this.pendingLimit = pendingLimit;
+        this.serializer = serializer;
+        this.capacity = capacity;
+        try {
+            if ( dir == null ) {
+                dir = Files.createTempDirectory("peernet-spill").toFile();
+                dir.deleteOnExit();
+            }
+            else
+                Files.createDirectories(dir.toPath());
+        } catch ( IOException e ) {
+            throw new UncheckedIOException("Could not create spill directory", e);
+        }
+        this.dir = dir;
+        near = new BigHeap(capacity);
+        pending = new BigHeap(1);
+        runs = new PriorityQueue<Run>();
+        spilled = 0L;
+        horizon = Long.MAX_VALUE;
+        runCount = 0;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Public methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns true iff the queue contains no events.
+     */
+    public boolean isEmpty( ) {
+        return this.size() == 0L;
+    }
+
+
+    /**
+     * Returns the number of events in the queue (in memory and on disk).
+     */
+    public long size( ) {
+        return near.size() + pending.size() + spilled;
+    }
+
+
+    /**
+     * Returns the number of events currently on disk.
+     */
+    public long spilledSize( ) {
+        return spilled;
+    }
+
+
+    /**
+     * Returns the minimum time of the events in the queue.
+     * If there are no events in the queue, returns Long.MAX_VALUE.
+     *
+     * @return the smallest time of an event in the queue
+     *         or Long.MAX_VALUE (if the size is zero).
+     */
+    public long getNextTime( ) {
+        this.refill();
+        return near.getNextTime();
+    }
+
+
+    /**
+     * Inserts the specified event into the queue.
+     * If writing to disk fails, an UncheckedIOException is raised.
+     *
+     * @param time:  the time at which this event should be scheduled
+     * @param src:   the address of the sender of the event
+     * @param node:  the node at which the event has to be delivered
+     * @param pid:   the protocol that handles the event
+     * @param event: the object decribing the event
+     */
+    public void add( long time, Address src, Node node, byte pid,
+                     Object event ) {
+        if ( time < horizon ) {
+            near.add(time, src, node, pid, event);
+            if ( near.size() > memLimit )
+                this.split();
+        }
+        else {
+            pending.add(time, src, node, pid, event);
+            if ( pending.size() >= pendingLimit )
+                this.spill(pending, pending.size());
+        }
+    }
+
+
+    /**
+     * Removes an event with the minimum time from the queue
+     * and returns that event.
+     * Notice that a singleton instance of the Event class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     * If there are no events in the queue, returns null.
+     *
+     * @return an event in the queue
+     *         or null (if the size is zero).
+     */
+    public Event removeFirst( ) {
+        this.refill();
+        return near.removeFirst();
+    }
+
+
+    /**
+     * Removes the events with the minimum time from the queue
+     * and returns those events, as BigHeap.removeMany does.
+     * Notice that a singleton instance of the Events class is used.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @return some events in the queue
+     */
+    public Events removeMany( ) {
+        this.refill();
+        return near.removeMany();
+    }
+
+
+    /**
+     * Removes, in time order, the events with time not greater than maxTime
+     * (at most maxCount of them) and returns those events.
+     * Only the events in memory are considered, so fewer events may be
+     * returned, but never only part of the events with the minimum time.
+     * Notice that a singleton instance of the Events class is used,
+     * which is replaced by a larger one when its array is full.
+     * Therefore, the data contained in the returned object are overwritten
+     * when a new invocation of this method is performed.
+     *
+     * @param maxTime:  the largest time of an event to be removed.
+     * @param maxCount: the largest number of events to be removed.
+     * @return some events in the queue
+     */
+    public Events removeUpTo( long maxTime, int maxCount ) {
+        this.refill();
+        return near.removeUpTo(maxTime, maxCount);
+    }
+
+
+    /**
+     * Hands all the events of the queue to the sink (not in time order),
+     * and leaves the queue unchanged. The events on disk are read from the
+     * runs one by one, without loading them into memory.
+     *
+     * @param events: the sink that receives the events.
+     */
+    public void copyTo( EventSink events ) throws IOException {
+        near.copyTo(events);
+        pending.copyTo(events);
+        Event ev = new Event();
+        for ( Run r : runs )
+            r.copyTo(events, ev);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Private methods
+    // ------------------------------------------------------------------------
+
+    // Keeps the earliest half of near in memory and spills the rest,
+    // moving the horizon down to the first spilled time.
+    private void split( ) {
+        BigHeap kept = new BigHeap(capacity);
+        long keep = memLimit / 2;
+        Event ev = null;
+        while ( kept.size() < keep ) {
+            ev = near.removeFirst();
+            kept.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+        }
+        // Events with the same time stay together.
+        long last = ev.time;
+        while ( near.getNextTime() == last ) {
+            ev = near.removeFirst();
+            kept.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+        }
+        if ( !near.isEmpty() ) {
+            horizon = near.getNextTime();
+            this.spill(near, near.size());
+        }
+        near = kept;
+    }
+
+
+    // Moves the events of near forward from the runs and pending, until
+    // near has memLimit / 2 events or nothing is left outside memory.
+    //
+    // Post: near is not empty, unless the whole queue is empty.
+    private void refill( ) {
+        if ( !near.isEmpty() || ( spilled == 0L && pending.isEmpty() ) )
+            return;
+        long load = memLimit / 2;
+        long last = Long.MIN_VALUE;
+        while ( true ) {
+            Run r = runs.peek();
+            long rt = r == null ? Long.MAX_VALUE : r.time;
+            long pt = pending.getNextTime();
+            long t = Math.min(rt, pt);
+            if ( t == Long.MAX_VALUE || ( near.size() >= load && t != last ) )
+                break;
+            if ( rt <= pt ) {
+                runs.poll();
+                Event ev = r.head;
+                near.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+                spilled--;
+                if ( r.advance() )
+                    runs.add(r);
+            }
+            else {
+                Event ev = pending.removeFirst();
+                near.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+            }
+            last = t;
+        }
+        Run r = runs.peek();
+        horizon = Math.min(r == null ? Long.MAX_VALUE : r.time, pending.getNextTime());
+    }
+
+
+    // Writes the first n events of the queue src (in order) to a new run.
+    private void spill( BigHeap src, long n ) {
+        RunWriter w = new RunWriter();
+        try {
+            for ( long i = 0; i < n; i++ )
+                w.write(src.removeFirst());
+        } catch ( IOException e ) {
+            w.abort();
+            throw new UncheckedIOException("Could not write run " + w.file, e);
+        }
+        Run r = w.finish();
+        if ( r.advance() )
+            runs.add(r);
+        spilled += n;
+        if ( runs.size() > FAN_IN )
+            this.merge();
+    }
+
+
+    // Merges the FAN_IN runs with the fewest events into a new run.
+    private void merge( ) {
+        ArrayList<Run> smallest = new ArrayList<Run>(runs);
+        smallest.sort(Comparator.comparingLong(r -> r.remaining));
+        PriorityQueue<Run> merged = new PriorityQueue<Run>(smallest.subList(0, FAN_IN));
+        runs.removeAll(merged);
+        RunWriter w = new RunWriter();
+        try {
+            while ( !merged.isEmpty() ) {
+                Run r = merged.poll();
+                w.write(r.head);
+                if ( r.advance() )
+                    merged.add(r);
+            }
+        } catch ( IOException e ) {
+            w.abort();
+            throw new UncheckedIOException("Could not write run " + w.file, e);
+        }
+        Run r = w.finish();
+        if ( r.advance() )
+            runs.add(r);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Runs
+    // ------------------------------------------------------------------------
+
+    // Writes a new run, with its own table of the objects written by
+    // reference.
+    private class RunWriter {
+
+        private final File file;
+        private final IdentityHashMap<Object, Integer> ids;
+        private final ArrayList<Object> objects;
+        private DataOutputStream out;
+        private long count;
+
+        RunWriter( ) {
+            this.file = new File(dir, "run-" + (runCount++) + ".seg");
+            this.ids = new IdentityHashMap<Object, Integer>();
+            this.objects = new ArrayList<Object>();
+            this.count = 0L;
+            try {
+                this.out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            } catch ( IOException e ) {
+                throw new UncheckedIOException("Could not create run " + file, e);
+            }
+        }
+
+        // Appends an event to the run.
+        void write( Event ev ) throws IOException {
+            out.writeLong(ev.time);
+            out.writeInt(this.idOf(ev.src));
+            out.writeInt(this.idOf(ev.node));
+            out.writeByte(ev.pid);
+            if ( ev.event == null )
+                out.writeByte(TAG_NULL);
+            else if ( ev.event instanceof Schedule ) {
+                out.writeByte(TAG_TABLE);
+                out.writeInt(this.idOf(ev.event));
+            }
+            else {
+                out.writeByte(TAG_SERIALIZED);
+                serializer.write(ev.event, out);
+            }
+            count++;
+        }
+
+        // Closes the file and opens it as a run.
+        Run finish( ) {
+            try {
+                out.close();
+            } catch ( IOException e ) {
+                this.abort();
+                throw new UncheckedIOException("Could not write run " + file, e);
+            }
+            return new Run(file, count, objects);
+        }
+
+        // Closes and deletes the file, after a failure.
+        void abort( ) {
+            try {
+                out.close();
+            } catch ( IOException e ) {
+                // The run is discarded anyway.
+            }
+            file.delete();
+        }
+
+        // Returns the position of the object in the table (-1 for null).
+        private int idOf( Object o ) {
+            if ( o == null )
+                return -1;
+            Integer id = ids.get(o);
+            if ( id == null ) {
+                id = objects.size();
+                ids.put(o, id);
+                objects.add(o);
+            }
+            return id;
+        }
+    }
+
+
+    // A sorted run on disk, read sequentially with its next event in head.
+    private class Run implements Comparable<Run> {
+
+        private final File file;
+        private final ArrayList<Object> objects;
+        private long remaining;
+        private MappedInput input;
+        private DataInputStream in;
+        private final Event head;
+        private long time;
+
+        Run( File file, long n, ArrayList<Object> objects ) {
+            this.file = file;
+            this.objects = objects;
+            this.remaining = n;
+            this.head = new Event();
+            try {
+                this.input = new MappedInput(file);
+                this.in = new DataInputStream(input);
+            } catch ( IOException e ) {
+                file.delete();
+                throw new UncheckedIOException("Could not map run " + file, e);
+            }
+            // The mapping stays readable; this fails where open files are
+            // locked, and then the file is deleted when the run is consumed.
+            file.delete();
+        }
+
+        // Reads the next event into head.
+        // Returns false (and deletes the run) if there are no more events.
+        boolean advance( ) {
+            try {
+                if ( remaining == 0L ) {
+                    in.close();
+                    file.delete();
+                    head.src = null;
+                    head.node = null;
+                    head.event = null;
+                    return false;
+                }
+                remaining--;
+                this.read(in, head);
+                time = head.time;
+                return true;
+            } catch ( IOException e ) {
+                throw new UncheckedIOException("Could not read run " + file, e);
+            }
+        }
+
+        // Hands the events left in the run to the sink (through ev),
+        // reading them from a second stream over the file.
+        void copyTo( EventSink events, Event ev ) throws IOException {
+            events.add(head.time, head.src, head.node, head.pid, head.event);
+            DataInputStream copy = new DataInputStream(input.copy());
+            for ( long i = 0; i < remaining; i++ ) {
+                this.read(copy, ev);
+                events.add(ev.time, ev.src, ev.node, ev.pid, ev.event);
+            }
+        }
+
+        // Reads the next event of the stream into ev.
+        private void read( DataInputStream in, Event ev ) throws IOException {
+            ev.time = in.readLong();
+            ev.src = (Address) objectAt(in.readInt());
+            ev.node = (Node) objectAt(in.readInt());
+            ev.pid = in.readByte();
+            byte tag = in.readByte();
+            if ( tag == TAG_NULL )
+                ev.event = null;
+            else if ( tag == TAG_TABLE )
+                ev.event = objectAt(in.readInt());
+            else
+                ev.event = serializer.read(in);
+        }
+
+        public int compareTo( Run o ) {
+            return Long.compare(time, o.time);
+        }
+
+        // Returns the object at the position in the table (null for -1).
+        private Object objectAt( int id ) {
+            return id < 0 ? null : objects.get(id);
+        }
+    }
+
+
+    // Sequential stream over a file, mapped in windows of at most WINDOW
+    // bytes.
+    private static class MappedInput extends InputStream {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long length;
+        private final boolean shared;
+        private long start;
+        private MappedByteBuffer buf;
+
+        MappedInput( File file ) throws IOException {
+            this(new RandomAccessFile(file, "r"), 0L, false);
+        }
+
+        private MappedInput( RandomAccessFile raf, long position, boolean shared )
+            throws IOException {
+            this.raf = raf;
+            this.channel = raf.getChannel();
+            this.length = channel.size();
+            this.shared = shared;
+            this.start = position;
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                   Math.min(WINDOW, length - position));
+        }
+
+        // Returns a stream over the rest of the file, from the current
+        // position, that leaves this one unchanged (and does not close
+        // the file).
+        MappedInput copy( ) throws IOException {
+            return new MappedInput(raf, start + buf.position(), true);
+        }
+
+        // Maps the next window; returns false at the end of the file.
+        private boolean nextWindow( ) throws IOException {
+            start += buf.capacity();
+            if ( start >= length )
+                return false;
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, length - start));
+            return true;
+        }
+
+        @Override
+        public int read( ) throws IOException {
+            if ( !buf.hasRemaining() && !this.nextWindow() )
+                return -1;
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( len == 0 )
+                return 0;
+            if ( !buf.hasRemaining() && !this.nextWindow() )
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close( ) throws IOException {
+            buf = null;
+            if ( !shared )
+                raf.close();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package nova.peernet.core.queues.tests;
+
+import java.util.Random;
+
+import nova.peernet.core.queues.BatchEventQueue;
+import nova.peernet.core.queues.BigHeap;
+import nova.peernet.core.queues.ConcurrentBigHeap;
+import nova.peernet.core.queues.ConcurrentBigHeapWithInterval;
+import nova.peernet.core.queues.EventBuffer;
+import peernet.core.Event;
+import peernet.core.Events;
+
+/**
+ * Checks the order of the events removed with removeUpTo from the heaps
+ * kept in slices, after bulk insertions with addAll on both of its paths:
+ * a buffer smaller than the heap (inserted one by one) and a buffer at least
+ * as large as the heap (appended and heapified, in parallel for the large
+ * levels). Every batch must hold events in time order, with times not
+ * greater than maxTime, at most maxCount of them, and must stop only at
+ * maxCount or before an event later than maxTime.
+ */
+public class BigHeapOrderTest {
+
+	// Large enough for heapify to sift some levels down in parallel.
+	private static final int BULK = 300000;
+	private static final int SMALL = 1000;
+	private static final int MAX_DELAY = 1 << 16;
+	private static final int MAX_COUNT = 5000;
+
+	private final BatchEventQueue queue;
+	private final Random r;
+	private int seq;
+	private long idSum;
+	private long lastTime;
+	private long removals;
+
+	public BigHeapOrderTest(BatchEventQueue queue, long seed) {
+		this.queue = queue;
+		this.r = new Random(seed);
+		this.seq = 0;
+		this.idSum = 0;
+		this.lastTime = 0;
+		this.removals = 0;
+	}
+
+	// Inserts n events, at or after the last time removed, with addAll.
+	private void addAll(int n) {
+		boolean small = n < queue.size();
+		EventBuffer buf = new EventBuffer(n);
+		for (int i = 0; i < n; i++)
+			buf.add(lastTime + r.nextInt(MAX_DELAY), null, null, (byte) 0, Integer.valueOf(seq++));
+		queue.addAll(buf);
+		if (!buf.isEmpty())
+			throw new IllegalStateException("addAll left " + buf.size() + " events in the buffer.");
+		System.out.println("  addAll of " + n + " events (" + (small ? "one by one" : "heapified") + "): heap holds " + queue.size());
+	}
+
+	// Removes batches until the heap holds at most target events.
+	private void removeUntil(long target) {
+		while (queue.size() > target) {
+			long maxTime = lastTime + r.nextInt(MAX_DELAY / 64);
+			int maxCount = 1 + r.nextInt(MAX_COUNT);
+			Events evs = queue.removeUpTo(maxTime, maxCount);
+			if (evs.size > maxCount)
+				throw new IllegalStateException("Removed " + evs.size + " events, more than " + maxCount + ".");
+			for (int i = 0; i < evs.size; i++) {
+				Event ev = evs.array[i];
+				if (ev.time < lastTime)
+					throw new IllegalStateException("Error in order: time " + ev.time + " after " + lastTime);
+				if (ev.time > maxTime)
+					throw new IllegalStateException("Removed time " + ev.time + " beyond " + maxTime);
+				lastTime = ev.time;
+				idSum += (Integer) ev.event;
+				removals++;
+			}
+			if (evs.size < maxCount && queue.getNextTime() <= maxTime)
+				throw new IllegalStateException("Stopped at " + evs.size + " events before time " + queue.getNextTime() + " <= " + maxTime);
+			lastTime = Math.max(lastTime, Math.min(maxTime, queue.getNextTime()));
+		}
+	}
+
+	private void run() {
+		addAll(BULK);
+		removeUntil(BULK / 2);
+		addAll(SMALL);
+		removeUntil(BULK / 4);
+		addAll(BULK);
+		removeUntil(0);
+		if (removals != seq)
+			throw new IllegalStateException("Removed " + removals + " of " + seq + " events.");
+		if (idSum != (long) seq * (seq - 1) / 2)
+			throw new IllegalStateException("Removed events are not the inserted ones.");
+	}
+
+	private static void test(BatchEventQueue queue, String name) {
+		System.out.println("Class being tested: " + name);
+		new BigHeapOrderTest(queue, 42).run();
+		System.out.println("Class being tested: " + name + ": OK");
+	}
+
+	public static void main (String[] args) {
+		try {
+			test(new BigHeap(), "BigHeap");
+			test(new BigHeap(true), "BigHeap (off-heap)");
+			test(new ConcurrentBigHeap(), "ConcurrentBigHeap");
+			test(new ConcurrentBigHeap(true), "ConcurrentBigHeap (off-heap)");
+			test(new ConcurrentBigHeapWithInterval(), "ConcurrentBigHeapWithInterval");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package nova.peernet.core.queues.tests;
+
+import java.util.Random;
+
+import nova.peernet.core.queues.CalendarQueue;
+import nova.peernet.core.queues.DaryBigHeap;
+import nova.peernet.core.queues.JavaEventSerializer;
+import nova.peernet.core.queues.LadderQueue;
+import nova.peernet.core.queues.RadixHeap;
+import nova.peernet.core.queues.SpillingEventQueue;
+import peernet.core.Event;
+import peernet.core.EventQueue;
+
+/**
+ * Checks the order of the events removed from the queues, with many events
+ * sharing the same time: times must never decrease, and the queues that
+ * promise it (CalendarQueue, LadderQueue and RadixHeap) must remove events
+ * with the same time in insertion order. The events follow a hold model
+ * (remove one, insert a few at the same or a later time), so that the
+ * queues resize, spill and redistribute their events while holding ties.
+ */
+public class EventQueueTieTest {
+
+	private static final int PRELOAD = 20000;
+	private static final int STEPS = 200000;
+	private static final int MAX_DELAY = 16;
+
+	private final EventQueue queue;
+	private final boolean stable;
+	private final Random r;
+	private int seq;
+	private long lastTime;
+	private int lastSeq;
+	private long removals;
+
+	public EventQueueTieTest(EventQueue queue, boolean stable, long seed) {
+		this.queue = queue;
+		this.stable = stable;
+		this.r = new Random(seed);
+		this.seq = 0;
+		this.lastTime = Long.MIN_VALUE;
+		this.lastSeq = -1;
+		this.removals = 0;
+	}
+
+	private void add(long time) {
+		queue.add(time, null, null, (byte) 0, Integer.valueOf(seq++));
+	}
+
+	private void check(Event ev) {
+		int s = (Integer) ev.event;
+		if (ev.time < lastTime)
+			throw new IllegalStateException("Error in order: time " + ev.time + " after " + lastTime);
+		if (stable && ev.time == lastTime && s < lastSeq)
+			throw new IllegalStateException("Error in tie order at time " + ev.time + ": event " + s + " after " + lastSeq);
+		lastTime = ev.time;
+		lastSeq = s;
+		removals++;
+	}
+
+	private void run() {
+		// A burst of events with the same time, from an empty queue.
+		for (int i = 0; i < 40; i++)
+			add(5);
+		for (int i = 0; i < 40; i++)
+			check(queue.removeFirst());
+		for (int i = 0; i < PRELOAD; i++)
+			add(lastTime + r.nextInt(MAX_DELAY));
+		for (int i = 0; i < STEPS; i++) {
+			Event ev = queue.removeFirst();
+			check(ev);
+			int n = r.nextInt(3);
+			long now = ev.time;
+			for (int j = 0; j < n; j++)
+				add(now + (r.nextBoolean() ? 0 : r.nextInt(MAX_DELAY)));
+		}
+		for (Event ev = queue.removeFirst(); ev != null; ev = queue.removeFirst())
+			check(ev);
+		if (removals != seq)
+			throw new IllegalStateException("Removed " + removals + " of " + seq + " events.");
+	}
+
+	private static void test(EventQueue queue, boolean stable) {
+		new EventQueueTieTest(queue, stable, 42).run();
+		System.out.println("Class being tested: " + queue.getClass().getCanonicalName()
+				+ (stable ? " (stable ties)" : "") + ": OK");
+	}
+
+	public static void main (String[] args) {
+		try {
+			test(new CalendarQueue(), true);
+			test(new LadderQueue(), true);
+			test(new RadixHeap(RadixHeap.DEF_ARR_CAP, true), true);
+			test(new DaryBigHeap(), false);
+			test(new SpillingEventQueue(1000, 500, null, new JavaEventSerializer(), SpillingEventQueue.DEF_ARR_CAP), false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package nova.peernet.core.tests;
+
+import java.util.Properties;
+
+import nova.peernet.core.BigEngineSim;
+import nova.peernet.core.PartitionedEngineSim;
+import nova.peernet.core.SimulationContext;
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.core.CommonState;
+import peernet.core.Control;
+import peernet.core.Engine;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * Runs a ping-pong model on BigEngineSim with every scheduler, and on
+ * PartitionedEngineSim, and checks that the final state of every node
+ * matches a reference run with the sequential scheduler.
+ *
+ * Every message received by a node is answered with a message to a random
+ * node, and a quarter of them go to one of three hub nodes, so the batches
+ * hold many events of the same node: the "pool", "forkjoin" and "virtual"
+ * schedulers chain them, and appending to a chain races with the chain
+ * finishing its last event. The state of a node (the number and the sum of
+ * the messages it received) does not depend on the order of the messages
+ * with the same time, so it must be the same in every run. A node that
+ * receives a message while it is handling another one stops the test.
+ *
+ * Usage: java nova.peernet.core.tests.EngineCompareTest [nodes endtime]
+ */
+public class EngineCompareTest {
+
+	private static final int PID = 0;
+
+	// Smallest delay of a message, declared as lookahead in some runs.
+	private static final long LATENCY = 10;
+
+	private static final int HUBS = 3;
+
+	private static Engine engine;
+	private static Node[] nodes;
+
+	/**
+	 * A node of the model. Every message is a number, from which the next
+	 * destination and delay are derived.
+	 */
+	public static class PingPong implements Protocol {
+
+		final int index;
+		long count;
+		long sum;
+		private volatile boolean busy;
+
+		public PingPong(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void nextCycle(int schedId) {
+		}
+
+		@Override
+		public long nextDelay() {
+			return 0;
+		}
+
+		@Override
+		public void processEvent(Address src, Object event) {
+			if (busy)
+				throw new IllegalStateException("Node " + index + " handles two events at once at time " + SimulationContext.getTime());
+			busy = true;
+			long v = (Long) event;
+			count++;
+			sum += v;
+			long next = mix(v * 31 + index);
+			int dst = (int) (next % (next % 4 == 0 ? HUBS : nodes.length));
+			engine.addEventIn(LATENCY + next % 7, null, nodes[dst], PID, Long.valueOf(next));
+			if (next % 50 == 0)
+				engine.addEventIn(LATENCY + next % 3, null, nodes[(int) ((next >>> 8) % nodes.length)], PID, Long.valueOf(next + 1));
+			busy = false;
+		}
+
+		@Override
+		public Object clone() {
+			return new PingPong(index);
+		}
+	}
+
+	/**
+	 * The engines of the test, which set up the fields of Engine that are
+	 * otherwise read from the configuration.
+	 */
+	private static class Big extends BigEngineSim {
+		Big(long endtime) {
+			this.controls = new Control[0];
+			this.controlSchedules = new Schedule[0];
+			this.endtime = endtime;
+			this.logtime = Long.MAX_VALUE / 2;
+			this.nextlog = Long.MAX_VALUE / 2;
+			createHeaps();
+		}
+	}
+
+	private static class Partitioned extends PartitionedEngineSim {
+		Partitioned(long endtime) {
+			this.controls = new Control[0];
+			this.controlSchedules = new Schedule[0];
+			this.endtime = endtime;
+			this.logtime = Long.MAX_VALUE / 2;
+			this.nextlog = Long.MAX_VALUE / 2;
+			createHeaps();
+		}
+	}
+
+	/**
+	 * Runs the model on a new network and returns a hash of the final state
+	 * of its nodes.
+	 */
+	private static long run(boolean partitioned, int n, long endtime, String... config) {
+		Properties props = new Properties();
+		props.setProperty(Simulator.PAR_SIM_HEAP, "nova.peernet.core.queues.BigHeap");
+		for (String kv : config) {
+			int eq = kv.indexOf('=');
+			props.setProperty(kv.substring(0, eq), kv.substring(eq + 1));
+		}
+		Configuration.setConfig(props);
+		CommonState.setTime(0);
+
+		Network.reset();
+		nodes = new Node[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Node();
+			nodes[i].setProtocol(PID, new PingPong(i));
+			Network.add(nodes[i]);
+		}
+		engine = partitioned ? new Partitioned(endtime) : new Big(endtime);
+		for (int i = 0; i < n; i++)
+			engine.addEventAt(i % 5, null, nodes[i], PID, Long.valueOf(i));
+		engine.startExperiment();
+
+		long hash = 0;
+		long events = 0;
+		for (Node node : nodes) {
+			PingPong p = (PingPong) node.getProtocol(PID);
+			hash = hash * 1000003 + p.count * 31 + p.sum;
+			events += p.count;
+		}
+		System.out.println("  " + String.join(" ", config) + ": events " + events + " hash " + Long.toHexString(hash));
+		return hash;
+	}
+
+	private static void check(long expected, boolean partitioned, int n, long endtime, String... config) {
+		if (run(partitioned, n, endtime, config) != expected)
+			throw new IllegalStateException((partitioned ? "PartitionedEngineSim" : "BigEngineSim") + " with "
+					+ String.join(" ", config) + " does not match the sequential run.");
+	}
+
+	/**
+	 * A 64-bit hash function (the finalizer of SplitMix64), made positive.
+	 */
+	private static long mix(long x) {
+		x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+		x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return (x ^ (x >>> 33)) & Long.MAX_VALUE;
+	}
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long endtime = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+		String heap = Simulator.PAR_SIM_HEAP;
+		String lookahead = heap + ".lookahead=" + LATENCY;
+		try {
+			System.out.println("BigEngineSim");
+			long expected = run(false, n, endtime, heap + ".scheduler=sequential");
+			check(expected, false, n, endtime, heap + ".scheduler=pool");
+			check(expected, false, n, endtime, heap + ".scheduler=forkjoin");
+			check(expected, false, n, endtime, heap + ".scheduler=virtual");
+			check(expected, false, n, endtime, heap + ".scheduler=forkjoin", heap + ".buffered=");
+			check(expected, false, n, endtime, heap + ".scheduler=pool", lookahead);
+			check(expected, false, n, endtime, heap + ".scheduler=forkjoin", lookahead, heap + ".buffered=", heap + ".pipelined=");
+			check(expected, false, n, endtime, heap + ".scheduler=virtual", lookahead, heap + ".pipelined=",
+					heap + "=nova.peernet.core.queues.ConcurrentBigHeap");
+			System.out.println("PartitionedEngineSim");
+			check(expected, true, n, endtime, heap + ".partitions=1");
+			check(expected, true, n, endtime, heap + ".partitions=3");
+			check(expected, true, n, endtime, heap + ".partitions=3", lookahead);
+			System.out.println("All runs match.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+}
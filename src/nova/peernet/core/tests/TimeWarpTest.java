@@ -0,0 +1,214 @@
+package nova.peernet.core.tests;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nova.peernet.core.BigEngineSim;
+import nova.peernet.core.SimulationContext;
+import nova.peernet.core.Snapshotable;
+import nova.peernet.core.TimeWarpEngineSim;
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.core.CommonState;
+import peernet.core.Control;
+import peernet.core.Engine;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.core.Schedule;
+import peernet.transport.Address;
+
+/**
+ * Runs a ping-pong model on TimeWarpEngineSim and checks that the final
+ * state of every node matches a run on BigEngineSim with the sequential
+ * scheduler.
+ *
+ * Every message received by a node is answered with a message to a random
+ * node, with a short delay. The nodes of the first partition are slow
+ * (each event spins for a while), so the other partitions run ahead of it
+ * and its messages reach them in their past: they must roll back, and the
+ * test fails if no protocol state is ever restored. The state of a node
+ * (the number and the sum of the messages it received) does not depend on
+ * the order of the messages with the same time.
+ *
+ * Usage: java nova.peernet.core.tests.TimeWarpTest [nodes endtime]
+ */
+public class TimeWarpTest {
+
+	private static final int PID = 0;
+
+	private static final int PARTITIONS = 4;
+
+	// How long an event of a slow node spins, in nanoseconds.
+	private static final long SLOW_NANOS = 10000;
+
+	private static Engine engine;
+	private static Node[] nodes;
+	private static final AtomicLong restores = new AtomicLong();
+
+	/**
+	 * A node of the model, whose state can be rolled back. Every message is
+	 * a number, from which the next destination and delay are derived.
+	 */
+	public static class PingPong implements Protocol, Snapshotable {
+
+		final int index;
+		final boolean slow;
+		long count;
+		long sum;
+
+		public PingPong(int index, boolean slow) {
+			this.index = index;
+			this.slow = slow;
+		}
+
+		@Override
+		public void nextCycle(int schedId) {
+		}
+
+		@Override
+		public long nextDelay() {
+			return 0;
+		}
+
+		@Override
+		public void processEvent(Address src, Object event) {
+			long v = (Long) event;
+			count++;
+			sum += v + SimulationContext.getTime();
+			long next = mix(v * 31 + index);
+			engine.addEventIn(1 + next % 7, null, nodes[(int) (next % nodes.length)], PID, Long.valueOf(next));
+			if (slow) {
+				long end = System.nanoTime() + SLOW_NANOS;
+				while (System.nanoTime() < end)
+					Thread.onSpinWait();
+			}
+		}
+
+		@Override
+		public Object snapshot() {
+			return new long[] { count, sum };
+		}
+
+		@Override
+		public void restore(Object snapshot) {
+			long[] state = (long[]) snapshot;
+			count = state[0];
+			sum = state[1];
+			restores.incrementAndGet();
+		}
+
+		@Override
+		public Object clone() {
+			return new PingPong(index, slow);
+		}
+	}
+
+	/**
+	 * The engines of the test, which set up the fields of Engine that are
+	 * otherwise read from the configuration.
+	 */
+	private static class Big extends BigEngineSim {
+		Big(long endtime) {
+			this.controls = new Control[0];
+			this.controlSchedules = new Schedule[0];
+			this.endtime = endtime;
+			this.logtime = Long.MAX_VALUE / 2;
+			this.nextlog = Long.MAX_VALUE / 2;
+			createHeaps();
+		}
+	}
+
+	private static class TimeWarp extends TimeWarpEngineSim {
+		TimeWarp(long endtime) {
+			this.controls = new Control[0];
+			this.controlSchedules = new Schedule[0];
+			this.endtime = endtime;
+			this.logtime = Long.MAX_VALUE / 2;
+			this.nextlog = Long.MAX_VALUE / 2;
+			createHeaps();
+		}
+	}
+
+	/**
+	 * Runs the model on a new network and returns a hash of the final state
+	 * of its nodes.
+	 */
+	private static long run(boolean optimistic, int n, long endtime, String... config) {
+		Properties props = new Properties();
+		props.setProperty(Simulator.PAR_SIM_HEAP, "nova.peernet.core.queues.BigHeap");
+		props.setProperty(Simulator.PAR_SIM_HEAP + ".partitions", Integer.toString(PARTITIONS));
+		for (String kv : config) {
+			int eq = kv.indexOf('=');
+			props.setProperty(kv.substring(0, eq), kv.substring(eq + 1));
+		}
+		Configuration.setConfig(props);
+		CommonState.setTime(0);
+
+		Network.reset();
+		nodes = new Node[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new Node();
+			Network.add(nodes[i]);
+		}
+		// The nodes of the partition of the first node are slow.
+		for (int i = 0; i < n; i++) {
+			boolean slow = Math.floorMod(nodes[i].getID() - nodes[0].getID(), (long) PARTITIONS) == 0;
+			nodes[i].setProtocol(PID, new PingPong(i, slow));
+		}
+		engine = optimistic ? new TimeWarp(endtime) : new Big(endtime);
+		for (int i = 0; i < n; i++)
+			engine.addEventAt(i % 5, null, nodes[i], PID, Long.valueOf(i));
+		restores.set(0);
+		engine.startExperiment();
+
+		long hash = 0;
+		long events = 0;
+		for (Node node : nodes) {
+			PingPong p = (PingPong) node.getProtocol(PID);
+			hash = hash * 1000003 + p.count * 31 + p.sum;
+			events += p.count;
+		}
+		System.out.println("  " + String.join(" ", config) + ": events " + events + " hash " + Long.toHexString(hash)
+				+ " restores " + restores.get());
+		return hash;
+	}
+
+	private static void check(long expected, int n, long endtime, String... config) {
+		if (run(true, n, endtime, config) != expected)
+			throw new IllegalStateException("TimeWarpEngineSim with " + String.join(" ", config)
+					+ " does not match the sequential run.");
+	}
+
+	/**
+	 * A 64-bit hash function (the finalizer of SplitMix64), made positive.
+	 */
+	private static long mix(long x) {
+		x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+		x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return (x ^ (x >>> 33)) & Long.MAX_VALUE;
+	}
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long endtime = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		String heap = Simulator.PAR_SIM_HEAP;
+		try {
+			System.out.println("BigEngineSim");
+			long expected = run(false, n, endtime, heap + ".scheduler=sequential");
+			System.out.println("TimeWarpEngineSim (" + PARTITIONS + " partitions)");
+			check(expected, n, endtime, heap + ".gvtinterval=1000");
+			if (restores.get() == 0)
+				throw new IllegalStateException("No rollback: the test did not produce stragglers.");
+			check(expected, n, endtime, heap + ".gvtinterval=100");
+			check(expected, n, endtime, heap + ".optimism=20");
+			check(expected, n, endtime, heap + ".uncommitted=1000");
+			System.out.println("All runs match.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+}
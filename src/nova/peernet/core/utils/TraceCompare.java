@@ -0,0 +1,132 @@
+package nova.peernet.core.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs an experiment twice with the event trace of BigEngineSim enabled:
+ * once as a reference, with the sequential Heap and the events executed in
+ * order on the engine thread, and once as configured. Then reports the
+ * first trace checkpoint where the two runs diverge.
+ *
+ * Usage:
+ *   java nova.peernet.core.utils.TraceCompare [-period p] [-reference class]
+ *        config [key=value ...]
+ *
+ * The key=value pairs override the configuration in both runs, as in the
+ * command line of peernet.Simulator; the reference run also executes one
+ * time at a time (a lookahead of 0). The period defaults to the
+ * simulation.heap.trace of the configuration, which must then be set; the
+ * reference queue defaults to peernet.core.Heap. Each run is a new JVM with
+ * the classpath and the JVM options of this one, and its output is saved to
+ * trace-reference.log and trace-parallel.log.
+ *
+ * The exit status is 0 if the traces match, 1 if they diverge and 2 if a
+ * run fails or produces no checkpoints.
+ */
+public class TraceCompare {
+
+	private static final String TRACE_PREFIX = "Trace: ";
+
+	private static final String DEF_REFERENCE = "peernet.core.Heap";
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String period = null;
+		String reference = DEF_REFERENCE;
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-period") && i + 1 < args.length)
+				period = args[i + 1];
+			else if (args[i].equals("-reference") && i + 1 < args.length)
+				reference = args[i + 1];
+			else
+				usage();
+			i += 2;
+		}
+		if (i == args.length)
+			usage();
+
+		List<String> common = new ArrayList<String>(Arrays.asList(args).subList(i, args.length));
+		if (period != null)
+			common.add("simulation.heap.trace=" + period);
+
+		List<String> sequential = new ArrayList<String>(common);
+		sequential.add("simulation.heap=" + reference);
+		sequential.add("simulation.heap.scheduler=sequential");
+		sequential.add("simulation.heap.lookahead=0");
+
+		List<String> expected = run("reference", sequential);
+		List<String> actual = run("parallel", common);
+		if (expected == null || actual == null)
+			System.exit(2);
+		if (expected.isEmpty() || actual.isEmpty()) {
+			System.err.println("No trace checkpoints: set simulation.heap.trace or use -period.");
+			System.exit(2);
+		}
+
+		int n = Math.min(expected.size(), actual.size());
+		for (int c = 0; c < n; c++) {
+			if (!expected.get(c).equals(actual.get(c))) {
+				System.out.println("Runs diverge at checkpoint " + c + ":");
+				System.out.println("  reference: " + expected.get(c));
+				System.out.println("  parallel:  " + actual.get(c));
+				System.exit(1);
+			}
+		}
+		if (expected.size() != actual.size()) {
+			List<String> longer = expected.size() > actual.size() ? expected : actual;
+			System.out.println("Runs diverge at checkpoint " + n + ": only the "
+					+ (longer == expected ? "reference" : "parallel") + " run reaches "
+					+ longer.get(n));
+			System.exit(1);
+		}
+		System.out.println("Runs match: " + n + " checkpoints, last " + expected.get(n - 1));
+	}
+
+	/**
+	 * Runs the simulator in a new JVM with the specified arguments, saving
+	 * its output to trace-name.log, and returns its trace checkpoints,
+	 * or null if it fails.
+	 */
+	private static List<String> run(String name, List<String> simArgs) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("peernet.Simulator");
+		command.addAll(simArgs);
+
+		File log = new File("trace-" + name + ".log");
+		System.err.println("Running " + name + ": " + String.join(" ", simArgs));
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		List<String> checkpoints = new ArrayList<String>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				PrintStream out = new PrintStream(log)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.println(line);
+				if (line.startsWith(TRACE_PREFIX))
+					checkpoints.add(line.substring(TRACE_PREFIX.length()));
+			}
+		}
+		int status = p.waitFor();
+		if (status != 0) {
+			System.err.println("The " + name + " run failed with status " + status + ", see " + log);
+			return null;
+		}
+		return checkpoints;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TraceCompare [-period p] [-reference class] config [key=value ...]");
+		System.exit(2);
+	}
+}